@@ -20,7 +20,10 @@
 
 package org.xwiki.contrib.bookversions;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.xwiki.component.annotation.Role;
 import org.xwiki.model.reference.DocumentReference;
@@ -190,7 +193,8 @@ public interface BookVersionsManager
     String transformUsingSlugValidation(String name);
 
     /**
-     * Get the selected version that is stored in the session for the given collection (book / library).
+     * Get the selected version for the given collection (book / library): the version named by the {@code bookVersion}
+     * request parameter if any, else the version stored in the session.
      * 
      * @param documentReference the document reference.
      * @return the selected version.
@@ -208,7 +212,8 @@ public interface BookVersionsManager
     void setSelectedVersion(DocumentReference documentReference, String version);
 
     /**
-     * Get the selected variant that is stored in the session for the given collection (book / library).
+     * Get the selected variant for the given collection (book / library): the variant named by the {@code bookVariant}
+     * request parameter if any, else the variant stored in the session.
      * 
      * @param documentReference the document reference.
      * @return the selected variant.
@@ -317,7 +322,9 @@ public interface BookVersionsManager
         throws QueryException, XWikiException;
 
     /**
-     * Check if the page has content corresponding to the given version.
+     * Check if the page has content corresponding to the given version. The content is the document named after the
+     * version below the page, holding a versioned content object: a document without that object is not a content
+     * (the consistency scan reports it, and adds the object when repairing).
      * 
      * @param documentReference The page reference.
      * @param version The version id.
@@ -397,6 +404,82 @@ public interface BookVersionsManager
     DocumentReference getInheritedContentReference(DocumentReference documentReference,
         DocumentReference versionReference) throws QueryException, XWikiException;
 
+    /**
+     * Get the reference of the content to be displayed for a versioned page, in one pass: the content of the selected
+     * version (or of the most recent version if none is selected), or else the content inherited from the closest
+     * preceding version.
+     *
+     * @param pageReference the reference of the versioned page
+     * @return the reference of the content to be displayed. Null if the reference is not a versioned page, or if
+     *         there's no versioned content for the page, neither to inherit.
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    DocumentReference resolveVersionedContentReference(DocumentReference pageReference)
+        throws QueryException, XWikiException;
+
+    /**
+     * Get, in one call, what the book versions UI needs to know about a document: its kind, its collection, the
+     * selected version and variant, the versions and variants of the collection and the content to display. The
+     * context is computed once per request, and computed again only if the selection changes.
+     *
+     * @param documentReference the document reference
+     * @return the context of the document, or null if the reference is null
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    PageContext getPageContext(DocumentReference documentReference) throws QueryException, XWikiException;
+
+    /**
+     * Get the book versions types (book, library, page, versioned page, versioned content, version, variant) of many
+     * documents at once, from the classes of their objects, without loading the documents.
+     *
+     * @param documentReferences the references of the documents to classify
+     * @return the types of each given document, in the same order
+     * @throws QueryException
+     * @since 1.0
+     */
+    Map<DocumentReference, DocumentClassification> classify(Collection<DocumentReference> documentReferences)
+        throws QueryException;
+
+    /**
+     * Get the reference of the content to be displayed for all the pages of a collection, be it corresponding to the
+     * required version, or inherited from another version. This is equivalent to calling
+     * {@link #getInheritedContentReference(DocumentReference, DocumentReference)} for each page of the collection, but
+     * the computation is done at once for the whole collection.
+     *
+     * @param collectionReference the reference of the collection (book / library), or of one of its pages
+     * @param versionReference the reference of the version from which to get the content from, or inherit
+     * @return the reference of the content to be displayed, for each page of the collection. Versioned pages having no
+     *         content for the version, neither to inherit, are not part of the result. Unversioned pages are associated
+     *         to themselves.
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    Map<DocumentReference, DocumentReference> getInheritedContentReferences(DocumentReference collectionReference,
+        DocumentReference versionReference) throws QueryException, XWikiException;
+
+    /**
+     * Get the pages of a collection to be displayed to the readers of a version and variant: the unversioned pages and
+     * the versioned pages having content for the version, among the pages associated to the variant. A page without
+     * associated variants is part of all the variants. The result is computed at once for the whole collection, and
+     * cached until the pages of the collection change.
+     *
+     * @param collectionReference the reference of the collection (book / library), or of one of its pages
+     * @param versionReference the reference of the selected version, or {@code null} to keep all the versioned pages
+     * @param variantReference the reference of the selected variant, or {@code null} to keep the pages of all the
+     *     variants
+     * @return the visible pages of the collection
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    Set<DocumentReference> getVisiblePages(DocumentReference collectionReference, DocumentReference versionReference,
+        DocumentReference variantReference) throws QueryException, XWikiException;
+
     /**
      * Set a library configuration to a book if it doesn't exit yet. The last version of the library is set as default.
      * @param bookReference the reference of the book
@@ -0,0 +1,172 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions;
+
+/**
+ * The book versions types of a document, as a set of flags. A document can have several types, e.g. a book page is
+ * also a versioned page unless it is marked as unversioned.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class DocumentClassification
+{
+    /**
+     * The document is a book.
+     */
+    public static final int BOOK = 1;
+
+    /**
+     * The document is a library.
+     */
+    public static final int LIBRARY = 1 << 1;
+
+    /**
+     * The document is a book page.
+     */
+    public static final int PAGE = 1 << 2;
+
+    /**
+     * The document is a versioned book page.
+     */
+    public static final int VERSIONED_PAGE = 1 << 3;
+
+    /**
+     * The document is a versioned content.
+     */
+    public static final int VERSIONED_CONTENT = 1 << 4;
+
+    /**
+     * The document is a version.
+     */
+    public static final int VERSION = 1 << 5;
+
+    /**
+     * The document is a variant.
+     */
+    public static final int VARIANT = 1 << 6;
+
+    /**
+     * The classification of a document without any book versions type.
+     */
+    public static final DocumentClassification NONE = new DocumentClassification(0);
+
+    private final int flags;
+
+    /**
+     * @param flags the types of the document, as a combination of the flags of this class
+     */
+    public DocumentClassification(int flags)
+    {
+        this.flags = flags;
+    }
+
+    /**
+     * @return the types of the document, as a combination of the flags of this class
+     */
+    public int getFlags()
+    {
+        return this.flags;
+    }
+
+    /**
+     * @param flag one of the flags of this class
+     * @return true if the document has the given type
+     */
+    public boolean is(int flag)
+    {
+        return (this.flags & flag) != 0;
+    }
+
+    /**
+     * @return true if the document is a book
+     */
+    public boolean isBook()
+    {
+        return is(BOOK);
+    }
+
+    /**
+     * @return true if the document is a library
+     */
+    public boolean isLibrary()
+    {
+        return is(LIBRARY);
+    }
+
+    /**
+     * @return true if the document is a book page
+     */
+    public boolean isPage()
+    {
+        return is(PAGE);
+    }
+
+    /**
+     * @return true if the document is a versioned book page
+     */
+    public boolean isVersionedPage()
+    {
+        return is(VERSIONED_PAGE);
+    }
+
+    /**
+     * @return true if the document is a versioned content
+     */
+    public boolean isVersionedContent()
+    {
+        return is(VERSIONED_CONTENT);
+    }
+
+    /**
+     * @return true if the document is a version
+     */
+    public boolean isVersion()
+    {
+        return is(VERSION);
+    }
+
+    /**
+     * @return true if the document is a variant
+     */
+    public boolean isVariant()
+    {
+        return is(VARIANT);
+    }
+
+    @Override
+    public boolean equals(Object object)
+    {
+        return object instanceof DocumentClassification && ((DocumentClassification) object).flags == this.flags;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.flags;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Integer.toBinaryString(this.flags);
+    }
+}
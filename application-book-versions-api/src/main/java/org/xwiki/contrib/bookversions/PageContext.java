@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions;
+
+import java.util.List;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Snapshot of everything the book versions UI needs to know about a document: its kind, its collection, the selected
+ * version and variant, and the content to display. It is computed once per request and doesn't change afterwards.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public interface PageContext
+{
+    /**
+     * @return the reference of the document this context is about
+     */
+    DocumentReference getDocumentReference();
+
+    /**
+     * @return the reference of the versioned collection (book or library) of the document, or null if the document is
+     *         not part of a collection
+     */
+    DocumentReference getCollectionReference();
+
+    /**
+     * @return true if the document is a book
+     */
+    boolean isBook();
+
+    /**
+     * @return true if the document is a library
+     */
+    boolean isLibrary();
+
+    /**
+     * @return true if the document is a book page
+     */
+    boolean isPage();
+
+    /**
+     * @return true if the document is a versioned book page
+     */
+    boolean isVersionedPage();
+
+    /**
+     * @return true if the document is a versioned content
+     */
+    boolean isVersionedContent();
+
+    /**
+     * @return the serialized reference of the version selected for the collection, or null if none is selected
+     */
+    String getSelectedVersion();
+
+    /**
+     * @return the serialized reference of the variant selected for the collection, or null if none is selected
+     */
+    String getSelectedVariant();
+
+    /**
+     * @return the versions of the collection, the most recently created first
+     */
+    List<String> getVersions();
+
+    /**
+     * @return the variants of the collection, the most recently created first
+     */
+    List<String> getVariants();
+
+    /**
+     * @return the reference of the content to display: the content resolved for the selected version when the
+     *         document is a versioned page, the document itself when it is an unversioned page or a versioned
+     *         content, null otherwise
+     */
+    DocumentReference getContentReference();
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Raised when the chain of the versions a version inherits its content from can't be resolved: the preceding version
+ * links form a cycle, or the chain is longer than the configured maximum depth.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public class VersionInheritanceException extends XWikiException
+{
+    /**
+     * The reason why the chain can't be resolved.
+     */
+    public enum Reason
+    {
+        /**
+         * The preceding version links form a cycle.
+         */
+        CYCLE,
+
+        /**
+         * The chain is longer than the configured maximum depth.
+         */
+        MAX_DEPTH
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private final Reason reason;
+
+    private final transient DocumentReference versionReference;
+
+    private final transient List<DocumentReference> chain;
+
+    /**
+     * @param reason the reason why the chain can't be resolved
+     * @param versionReference the version whose chain was resolved
+     * @param chain the part of the chain resolved before the error, starting with the version itself
+     */
+    public VersionInheritanceException(Reason reason, DocumentReference versionReference,
+        List<DocumentReference> chain)
+    {
+        super(MODULE_XWIKI_APP, ERROR_XWIKI_UNKNOWN,
+            String.format("Failed to resolve the inheritance chain of version [%s] (%s): %s", versionReference,
+                reason, chain));
+
+        this.reason = reason;
+        this.versionReference = versionReference;
+        this.chain = Collections.unmodifiableList(chain);
+    }
+
+    /**
+     * @return the reason why the chain can't be resolved
+     */
+    public Reason getReason()
+    {
+        return this.reason;
+    }
+
+    /**
+     * @return the version whose chain was resolved
+     */
+    public DocumentReference getVersionReference()
+    {
+        return this.versionReference;
+    }
+
+    /**
+     * @return the part of the chain resolved before the error, starting with the version itself; for a cycle, it ends
+     *         with the version closing the cycle
+     */
+    public List<DocumentReference> getChain()
+    {
+        return this.chain;
+    }
+}
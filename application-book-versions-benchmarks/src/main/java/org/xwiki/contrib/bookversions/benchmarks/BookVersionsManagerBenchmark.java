@@ -0,0 +1,151 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.bookversions.BookVersionsManager;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Measures the hot paths of {@link BookVersionsManager} on a {@link SyntheticBook}, once the caches are warm. Run
+ * with {@code java -jar target/benchmarks.jar}, the parameters being overridden with {@code -p}, e.g.
+ * {@code -p versionCount=100}.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookVersionsManagerBenchmark
+{
+    @Param({ "1", "5", "10" })
+    private int depth;
+
+    @Param({ "100", "1000" })
+    private int pageCount;
+
+    @Param({ "1", "10", "50" })
+    private int versionCount;
+
+    private BookVersionsManager manager;
+
+    private DocumentReference bookReference;
+
+    private DocumentReference pageReference;
+
+    private DocumentReference lastVersionReference;
+
+    private String lastVersion;
+
+    /**
+     * Create the book and the manager.
+     *
+     * @throws Exception in case the manager can't be created
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        SyntheticBook book = new SyntheticBook(this.depth, this.pageCount, this.versionCount);
+        this.manager = book.createManager();
+        this.bookReference = book.getBook();
+        this.pageReference = book.getPages().get(this.pageCount / 2);
+        this.lastVersionReference = book.getVersions().get(this.versionCount - 1);
+        this.lastVersion = book.serializeLocal(this.lastVersionReference);
+    }
+
+    /**
+     * @return the collection of a page
+     * @throws Exception in case of error
+     */
+    @Benchmark
+    public DocumentReference getVersionedCollectionReference() throws Exception
+    {
+        return this.manager.getVersionedCollectionReference(this.pageReference);
+    }
+
+    /**
+     * @return the content of a page for the last version, inherited from the first version
+     * @throws Exception in case of error
+     */
+    @Benchmark
+    public DocumentReference getInheritedContentReference() throws Exception
+    {
+        return this.manager.getInheritedContentReference(this.pageReference, this.lastVersionReference);
+    }
+
+    /**
+     * @return the versions of the collection of a page
+     * @throws Exception in case of error
+     */
+    @Benchmark
+    public List<String> getCollectionVersions() throws Exception
+    {
+        return this.manager.getCollectionVersions(this.pageReference);
+    }
+
+    /**
+     * @return the version selected for the collection of a page
+     * @throws Exception in case of error
+     */
+    @Benchmark
+    public String getSelectedVersion() throws Exception
+    {
+        return this.manager.getSelectedVersion(this.pageReference);
+    }
+
+    /**
+     * @return whether a page has its own content for the last version
+     * @throws Exception in case of error
+     */
+    @Benchmark
+    public boolean hasContentForVersion() throws Exception
+    {
+        return this.manager.hasContentForVersion(this.pageReference, this.lastVersion);
+    }
+
+    /**
+     * @return the last version of the collection, found from its name
+     * @throws Exception in case of error
+     */
+    @Benchmark
+    public DocumentReference getVersionReference() throws Exception
+    {
+        return this.manager.getVersionReference(this.bookReference, this.lastVersionReference.getName());
+    }
+}
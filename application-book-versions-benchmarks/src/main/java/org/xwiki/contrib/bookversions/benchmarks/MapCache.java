@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.event.CacheEntryListener;
+
+/**
+ * Unbounded in-memory {@link Cache}, standing for the caches of the wiki.
+ *
+ * @param <T> the type of the cached values
+ * @version $Id$
+ * @since 1.0
+ */
+public class MapCache<T> implements Cache<T>
+{
+    private final Map<String, T> values = new ConcurrentHashMap<>();
+
+    @Override
+    public void set(String key, T value)
+    {
+        this.values.put(key, value);
+    }
+
+    @Override
+    public T get(String key)
+    {
+        return this.values.get(key);
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        this.values.remove(key);
+    }
+
+    @Override
+    public void removeAll()
+    {
+        this.values.clear();
+    }
+
+    @Override
+    public void addCacheEntryListener(CacheEntryListener<T> listener)
+    {
+        // Entries are never evicted.
+    }
+
+    @Override
+    public void removeCacheEntryListener(CacheEntryListener<T> listener)
+    {
+        // Entries are never evicted.
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.values.clear();
+    }
+}
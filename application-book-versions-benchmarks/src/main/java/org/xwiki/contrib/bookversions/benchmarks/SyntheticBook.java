@@ -0,0 +1,362 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Provider;
+import javax.servlet.http.HttpSession;
+
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.bookversions.BookVersionsManager;
+import org.xwiki.contrib.bookversions.internal.BookVersionsConstants;
+import org.xwiki.contrib.bookversions.internal.CollectionQueries;
+import org.xwiki.contrib.bookversions.internal.CollectionReferenceCache;
+import org.xwiki.contrib.bookversions.internal.DefaultBookVersionsManager;
+import org.xwiki.contrib.bookversions.internal.RequestMemo;
+import org.xwiki.contrib.bookversions.internal.ResolvedContentIndex;
+import org.xwiki.contrib.bookversions.internal.SessionSelectionStore;
+import org.xwiki.contrib.bookversions.internal.VersionGraphCache;
+import org.xwiki.contrib.bookversions.internal.VersionedContentIndex;
+import org.xwiki.contrib.bookversions.internal.VersionsAndVariantsCache;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.web.XWikiRequest;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A book living in a mocked, in-memory wiki: every page is versioned and nested at the given depth, each version
+ * inherits from the previous one, and the pages only have content for the first version, so that resolving the
+ * content of the last version walks the whole inheritance chain.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public class SyntheticBook
+{
+    private static final String WIKI = "xwiki";
+
+    private static final String HOMEPAGE = "WebHome";
+
+    private static final String DEFAULT_SPACE = "Main";
+
+    private final WikiReference wikiReference = new WikiReference(WIKI);
+
+    private final DocumentReference bookReference = new DocumentReference(WIKI, "Book", HOMEPAGE);
+
+    private final List<DocumentReference> versions = new ArrayList<>();
+
+    private final List<DocumentReference> pages = new ArrayList<>();
+
+    private final List<DocumentReference> contents = new ArrayList<>();
+
+    private final Map<DocumentReference, XWikiDocument> documents = new HashMap<>();
+
+    private final XWikiDocument missingDocument = mock(XWikiDocument.class);
+
+    /**
+     * @param depth the number of nested levels of each page, under the book
+     * @param pageCount the number of pages of the book
+     * @param versionCount the number of versions of the book, which is also the length of the inheritance chain of the
+     *     last version
+     */
+    public SyntheticBook(int depth, int pageCount, int versionCount)
+    {
+        when(this.missingDocument.isNew()).thenReturn(true);
+
+        addDocument(this.bookReference, BookVersionsConstants.BOOK_CLASS_REFERENCE);
+
+        SpaceReference bookSpace = this.bookReference.getLastSpaceReference();
+        SpaceReference versionsSpace = new SpaceReference(BookVersionsConstants.VERSIONS_LOCATION, bookSpace);
+        for (int i = 0; i < versionCount; i++) {
+            DocumentReference version = new DocumentReference("V" + i, versionsSpace);
+            this.versions.add(version);
+            addDocument(version, BookVersionsConstants.VERSION_CLASS_REFERENCE);
+        }
+
+        for (int i = 0; i < pageCount; i++) {
+            SpaceReference pageSpace = new SpaceReference("Page" + i, bookSpace);
+            for (int level = 1; level < depth; level++) {
+                pageSpace = new SpaceReference("Level" + level, pageSpace);
+            }
+            DocumentReference page = new DocumentReference(HOMEPAGE, pageSpace);
+            this.pages.add(page);
+            addDocument(page, BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE);
+
+            DocumentReference content = new DocumentReference(this.versions.get(0).getName(), pageSpace);
+            this.contents.add(content);
+            addDocument(content, BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE);
+        }
+    }
+
+    /**
+     * @return the reference of the book
+     */
+    public DocumentReference getBook()
+    {
+        return this.bookReference;
+    }
+
+    /**
+     * @return the pages of the book
+     */
+    public List<DocumentReference> getPages()
+    {
+        return this.pages;
+    }
+
+    /**
+     * @return the versions of the book, the oldest first
+     */
+    public List<DocumentReference> getVersions()
+    {
+        return this.versions;
+    }
+
+    /**
+     * @param reference a reference
+     * @return the reference serialized without its wiki, as stored in the selection and in the version properties
+     */
+    public String serializeLocal(EntityReference reference)
+    {
+        return serialize(reference, false);
+    }
+
+    /**
+     * Create a manager wired to the mocked wiki, the last version of the book being the selected one.
+     *
+     * @return the manager
+     * @throws Exception in case the manager can't be initialized
+     */
+    public BookVersionsManager createManager() throws Exception
+    {
+        XWikiContext xcontext = mock(XWikiContext.class);
+        XWiki xwiki = mock(XWiki.class);
+        when(xcontext.getWiki()).thenReturn(xwiki);
+        when(xcontext.getWikiReference()).thenReturn(this.wikiReference);
+        when(xwiki.getDocument(any(DocumentReference.class), any(XWikiContext.class)))
+            .thenAnswer(invocation -> this.documents.getOrDefault(invocation.getArgument(0), this.missingDocument));
+        when(xwiki.exists(any(DocumentReference.class), any(XWikiContext.class)))
+            .thenAnswer(invocation -> this.documents.containsKey(invocation.getArgument(0)));
+
+        XWikiRequest request = mock(XWikiRequest.class);
+        HttpSession session = mock(HttpSession.class);
+        when(xcontext.getRequest()).thenReturn(request);
+        when(request.getSession(anyBoolean())).thenReturn(session);
+        Map<DocumentReference, String> selectedVersions = new ConcurrentHashMap<>();
+        selectedVersions.put(this.bookReference, serializeLocal(this.versions.get(this.versions.size() - 1)));
+        when(session.getAttribute(BookVersionsConstants.SESSION_SELECTEDVERSION)).thenReturn(selectedVersions);
+
+        QueryManager queryManager = mock(QueryManager.class);
+        when(queryManager.createQuery(anyString(), anyString()))
+            .thenAnswer(invocation -> createQuery(invocation.getArgument(0)));
+
+        CacheManager cacheManager = mock(CacheManager.class);
+        when(cacheManager.createNewCache(any(CacheConfiguration.class))).thenAnswer(invocation -> new MapCache<>());
+
+        // Use the default values of all the configuration properties
+        ConfigurationSource configuration = mock(ConfigurationSource.class);
+        when(configuration.getProperty(anyString(), any())).thenAnswer(invocation -> invocation.getArgument(1));
+
+        Provider<XWikiContext> contextProvider = () -> xcontext;
+        Provider<QueryManager> queryManagerProvider = () -> queryManager;
+        EntityReferenceSerializer<String> serializer = (reference, parameters) -> serialize(reference, true);
+        EntityReferenceSerializer<String> localSerializer = (reference, parameters) -> serialize(reference, false);
+        DocumentReferenceResolver<String> resolver = this::resolve;
+
+        CollectionQueries collectionQueries = new CollectionQueries();
+        inject(collectionQueries, "queryManagerProvider", queryManagerProvider, "referenceResolver", resolver,
+            "localSerializer", localSerializer, "logger", NOPLogger.NOP_LOGGER);
+
+        CollectionReferenceCache collectionReferenceCache = new CollectionReferenceCache();
+        inject(collectionReferenceCache, "cacheManager", cacheManager, "serializer", serializer);
+        VersionGraphCache versionGraphCache = new VersionGraphCache();
+        inject(versionGraphCache, "cacheManager", cacheManager, "serializer", serializer);
+        VersionedContentIndex versionedContentIndex = new VersionedContentIndex();
+        inject(versionedContentIndex, "cacheManager", cacheManager, "serializer", serializer, "collectionQueries",
+            collectionQueries);
+        VersionsAndVariantsCache versionsAndVariantsCache = new VersionsAndVariantsCache();
+        inject(versionsAndVariantsCache, "cacheManager", cacheManager, "serializer", serializer,
+            "collectionQueries", collectionQueries);
+        ResolvedContentIndex resolvedContentIndex = new ResolvedContentIndex();
+        inject(resolvedContentIndex, "cacheManager", cacheManager, "serializer", serializer, "configuration",
+            configuration);
+        SessionSelectionStore selectionStore = new SessionSelectionStore();
+        inject(selectionStore, "contextProvider", contextProvider);
+        // The mocked context doesn't keep the request memo, so that each benchmark call measures a fresh request
+        RequestMemo requestMemo = new RequestMemo();
+        inject(requestMemo, "contextProvider", contextProvider);
+
+        DefaultBookVersionsManager manager = new DefaultBookVersionsManager();
+        inject(manager, "contextProvider", contextProvider, "referenceResolver", resolver, "localSerializer",
+            localSerializer, "collectionReferenceCache", collectionReferenceCache, "versionGraphCache",
+            versionGraphCache, "collectionQueries", collectionQueries, "versionedContentIndex", versionedContentIndex,
+            "selectionStore", selectionStore, "versionsAndVariantsCache", versionsAndVariantsCache,
+            "resolvedContentIndex", resolvedContentIndex, "requestMemo", requestMemo, "configuration", configuration,
+            "logger", NOPLogger.NOP_LOGGER);
+
+        return manager;
+    }
+
+    private void addDocument(DocumentReference reference, EntityReference classReference)
+    {
+        XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getDocumentReference()).thenReturn(reference);
+        BaseObject object = mock(BaseObject.class);
+        when(document.getXObject(classReference)).thenReturn(object);
+
+        this.documents.put(reference, document);
+    }
+
+    private Query createQuery(String statement)
+    {
+        Query query = mock(Query.class);
+        Map<String, Object> bindings = new HashMap<>();
+        when(query.bindValue(anyString(), any())).thenAnswer(invocation -> {
+            bindings.put(invocation.getArgument(0), invocation.getArgument(1));
+            return query;
+        });
+        when(query.execute()).thenAnswer(invocation -> execute(statement, bindings));
+
+        return query;
+    }
+
+    /**
+     * Answer the queries of {@link CollectionQueries}, recognized from their statement.
+     */
+    private List<Object> execute(String statement, Map<String, Object> bindings)
+    {
+        List<Object> results = new ArrayList<>();
+
+        if (statement.contains("obj.className in")) {
+            // Versions and variants, the most recently created first
+            String versionClass = serializeLocal(BookVersionsConstants.VERSION_CLASS_REFERENCE);
+            for (int i = this.versions.size() - 1; i >= 0; i--) {
+                results.add(new Object[] { serializeLocal(this.versions.get(i)), versionClass });
+            }
+        } else if (statement.contains("StringProperty")) {
+            // Preceding versions
+            for (int i = 1; i < this.versions.size(); i++) {
+                results.add(
+                    new Object[] { serializeLocal(this.versions.get(i)), serializeLocal(this.versions.get(i - 1)) });
+            }
+        } else if (statement.contains("not exists")) {
+            // Documents which are not pages
+            results.add(serializeLocal(this.bookReference));
+            this.versions.forEach(version -> results.add(serializeLocal(version)));
+            this.contents.forEach(content -> results.add(serializeLocal(content)));
+        } else if (!statement.contains("IntegerProperty")) {
+            // Documents holding an object of the given class, no page being unversioned
+            Object className = bindings.get("className");
+            if (serializeLocal(BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE).equals(className)) {
+                this.pages.forEach(page -> results.add(serializeLocal(page)));
+            } else if (serializeLocal(BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE).equals(className)) {
+                this.contents.forEach(content -> results.add(serializeLocal(content)));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Serialize a reference, the synthetic names needing no escaping.
+     */
+    private String serialize(EntityReference reference, boolean withWiki)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (EntityReference element : reference.getReversedReferenceChain()) {
+            if (element.getType() == EntityType.WIKI) {
+                if (withWiki) {
+                    builder.append(element.getName()).append(':');
+                }
+            } else {
+                if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ':') {
+                    builder.append('.');
+                }
+                builder.append(element.getName());
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Resolve a serialized document reference, the wiki being taken from the base reference when missing.
+     */
+    private DocumentReference resolve(String serializedReference, Object... parameters)
+    {
+        String wiki = WIKI;
+        String localReference = serializedReference;
+        int wikiSeparator = serializedReference.indexOf(':');
+        if (wikiSeparator >= 0) {
+            wiki = serializedReference.substring(0, wikiSeparator);
+            localReference = serializedReference.substring(wikiSeparator + 1);
+        } else if (parameters.length > 0 && parameters[0] instanceof EntityReference) {
+            EntityReference base = ((EntityReference) parameters[0]).extractReference(EntityType.WIKI);
+            wiki = base != null ? base.getName() : WIKI;
+        }
+
+        List<String> names = Arrays.asList(localReference.split("\\."));
+        if (names.size() == 1) {
+            return new DocumentReference(wiki, DEFAULT_SPACE, names.get(0));
+        }
+
+        return new DocumentReference(wiki, names.subList(0, names.size() - 1), names.get(names.size() - 1));
+    }
+
+    private static void inject(Object component, Object... fields) throws Exception
+    {
+        for (int i = 0; i < fields.length; i += 2) {
+            ReflectionUtils.setFieldValue(component, (String) fields[i], fields[i + 1]);
+        }
+
+        if (component instanceof Initializable) {
+            ((Initializable) component).initialize();
+        }
+    }
+}
@@ -79,6 +79,18 @@ public interface BookVersionsConstants
     EntityReference BOOKLIBRARYREFERENCE_CLASS_REFERENCE =
         new EntityReference("LibraryReferenceClass", EntityType.DOCUMENT, BOOKVERSIONS_CODE_REFERENCE);
 
+    /**
+     * The reference of the variants list class, listing the variants a page is associated with.
+     */
+    EntityReference VARIANTSLIST_CLASS_REFERENCE =
+        new EntityReference("VariantsListClass", EntityType.DOCUMENT, BOOKVERSIONS_CODE_REFERENCE);
+
+    /**
+     * The reference of the published book class.
+     */
+    EntityReference PUBLISHEDBOOK_CLASS_REFERENCE =
+        new EntityReference("PublishedBookClass", EntityType.DOCUMENT, BOOKVERSIONS_CODE_REFERENCE);
+
     /**
      * The unversioned property of a book page.
      */
@@ -119,6 +131,16 @@ public interface BookVersionsConstants
      */
     String SESSION_SELECTEDVARIANT = "BookVersions.selectedVariant";
 
+    /**
+     * The request parameter holding the name of the selected version, which takes precedence over the session.
+     */
+    String REQUEST_SELECTEDVERSION = "bookVersion";
+
+    /**
+     * The request parameter holding the name of the selected variant, which takes precedence over the session.
+     */
+    String REQUEST_SELECTEDVARIANT = "bookVariant";
+
     /**
      * The selected version that is stored in the session.
      */
@@ -134,6 +156,41 @@ public interface BookVersionsConstants
      */
     String BOOKLIBRARYREFERENCE_PROP_LIBRARYVERSION = "libraryVersionReference";
 
+    /**
+     * The variants property of a variants list.
+     */
+    String VARIANTSLIST_PROP_VARIANTS = "variantsList";
+
+    /**
+     * The master (book) name property of a published book.
+     */
+    String PUBLISHEDBOOK_PROP_MASTERNAME = "masterName";
+
+    /**
+     * The version name property of a published book.
+     */
+    String PUBLISHEDBOOK_PROP_VERSIONNAME = "bookVersionName";
+
+    /**
+     * The variant name property of a published book.
+     */
+    String PUBLISHEDBOOK_PROP_VARIANTNAME = "variantName";
+
+    /**
+     * The id of the variant macro.
+     */
+    String VARIANT_MACRO_ID = "variant";
+
+    /**
+     * The parameter of the variant macro holding the reference of its variant.
+     */
+    String VARIANT_MACRO_PARAM_VARIANTPAGE = "variantPage";
+
+    /**
+     * The text found in any content calling the variant macro.
+     */
+    String VARIANT_MACRO_MARKER = "{{" + VARIANT_MACRO_ID;
+
     /**
      * The location of version definitions, in a book / library.
      */
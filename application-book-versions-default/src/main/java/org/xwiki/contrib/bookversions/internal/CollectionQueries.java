@@ -0,0 +1,409 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.objects.classes.ListClass;
+
+/**
+ * Queries retrieving, at once, documents of a versioned collection (book or library). When only the objects are needed,
+ * the queries select them by class and by a prefix of their document full name, which are both indexed columns of the
+ * objects table, instead of joining the documents table and filtering its spaces.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = CollectionQueries.class)
+@Singleton
+public class CollectionQueries
+{
+    private static final String SPACE_PREFIX = "spacePrefix";
+
+    @Inject
+    private Provider<QueryManager> queryManagerProvider;
+
+    @Inject
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Get the pattern matching the spaces of all the documents of a collection, to be used in a query with a
+     * {@code like} operator and {@code /} as escape character. The same pattern matches the full names of the
+     * documents of the collection, including the ones located directly in the space of the collection.
+     *
+     * @param collectionReference the collection reference
+     * @return the pattern matching the spaces of the documents of the collection
+     */
+    public String getSpacePrefix(DocumentReference collectionReference)
+    {
+        String collectionSpaceSerialized = getSpace(collectionReference);
+        String spacePrefix = collectionSpaceSerialized.replaceAll("([%_/])", "/$1").concat(".%");
+
+        this.logger.debug("[getSpacePrefix] collectionSpaceSerialized : [{}]", collectionSpaceSerialized);
+        this.logger.debug("[getSpacePrefix] spacePrefix : [{}]", spacePrefix);
+
+        return spacePrefix;
+    }
+
+    /**
+     * Get all the documents of a collection holding an object of the given class.
+     *
+     * @param collectionReference the collection reference
+     * @param classReference the reference of the class
+     * @return the references of the documents of the collection holding an object of the given class
+     * @throws QueryException in case the query fails
+     */
+    public List<DocumentReference> getDocuments(DocumentReference collectionReference, EntityReference classReference)
+        throws QueryException
+    {
+        List<String> results = this.queryManagerProvider.get()
+            .createQuery("select distinct obj.name from BaseObject obj "
+                + "where obj.className = :className and obj.name like :spacePrefix escape '/'", Query.HQL)
+            .bindValue("className", this.localSerializer.serialize(classReference))
+            .bindValue(SPACE_PREFIX, getSpacePrefix(collectionReference)).execute();
+
+        return resolveDescendants(collectionReference, results);
+    }
+
+    /**
+     * Get all the versions and all the variants of a collection at once.
+     *
+     * @param collectionReference the collection reference
+     * @return the versions and the variants of the collection, the most recently created first
+     * @throws QueryException in case the query fails
+     */
+    public VersionsAndVariants getVersionsAndVariants(DocumentReference collectionReference) throws QueryException
+    {
+        String versionClass = this.localSerializer.serialize(BookVersionsConstants.VERSION_CLASS_REFERENCE);
+        // Query inspired from getDocumentReferences of DefaultModelBridge.java in xwiki-platform
+        List<Object[]> results = this.queryManagerProvider.get()
+            .createQuery("select doc.fullName, obj.className from XWikiDocument doc, BaseObject obj "
+                + "where doc.fullName = obj.name and obj.className in (:versionClass, :variantClass) "
+                + "and obj.name like :spacePrefix escape '/' order by doc.creationDate desc", Query.HQL)
+            .bindValue("versionClass", versionClass)
+            .bindValue("variantClass", this.localSerializer.serialize(BookVersionsConstants.VARIANT_CLASS_REFERENCE))
+            .bindValue(SPACE_PREFIX, getSpacePrefix(collectionReference)).execute();
+
+        List<String> versions = new ArrayList<>();
+        List<String> variants = new ArrayList<>();
+        Map<String, DocumentReference> versionsByName = new HashMap<>();
+        Map<String, DocumentReference> variantsByName = new HashMap<>();
+        SpaceReference versionsSpace = getLocationSpace(collectionReference, BookVersionsConstants.VERSIONS_LOCATION);
+        SpaceReference variantsSpace = getLocationSpace(collectionReference, BookVersionsConstants.VARIANTS_LOCATION);
+        for (Object[] result : results) {
+            String fullName = (String) result[0];
+            DocumentReference reference = this.referenceResolver.resolve(fullName, collectionReference);
+            if (!isDescendant(collectionReference, reference)) {
+                continue;
+            }
+            if (versionClass.equals(result[1])) {
+                versions.add(fullName);
+                index(versionsByName, reference, versionsSpace);
+            } else {
+                variants.add(fullName);
+                index(variantsByName, reference, variantsSpace);
+            }
+        }
+
+        return new VersionsAndVariants(versions, variants, versionsByName, variantsByName);
+    }
+
+    private SpaceReference getLocationSpace(DocumentReference collectionReference, String location)
+    {
+        return new SpaceReference(new EntityReference(location, EntityType.SPACE, collectionReference.getParent()));
+    }
+
+    /**
+     * Index a version or a variant by the name under which it is looked for: the name of the terminal document
+     * {@code Versions.Name}, or else the name of the space of the non-terminal document {@code Versions.Name.WebHome}.
+     */
+    private void index(Map<String, DocumentReference> referencesByName, DocumentReference reference,
+        SpaceReference locationSpace)
+    {
+        if (locationSpace.equals(reference.getParent())) {
+            referencesByName.put(reference.getName(), reference);
+        } else if (XWiki.DEFAULT_SPACE_HOMEPAGE.equals(reference.getName())
+            && locationSpace.equals(reference.getParent().getParent())) {
+            referencesByName.putIfAbsent(reference.getLastSpaceReference().getName(), reference);
+        }
+    }
+
+    /**
+     * Get the value of the preceding version property of all the versions of a collection.
+     *
+     * @param collectionReference the collection reference
+     * @return the serialized reference of the preceding version, for each version of the collection having this
+     *     property set
+     * @throws QueryException in case the query fails
+     */
+    public Map<DocumentReference, String> getPrecedingVersions(DocumentReference collectionReference)
+        throws QueryException
+    {
+        List<Object[]> results = this.queryManagerProvider.get()
+            .createQuery("select obj.name, prop.value from BaseObject obj, StringProperty prop "
+                + "where obj.className = :versionClass and obj.id = prop.id.id "
+                + "and prop.id.name = :precedingVersion and obj.name like :spacePrefix escape '/'", Query.HQL)
+            .bindValue("versionClass", this.localSerializer.serialize(BookVersionsConstants.VERSION_CLASS_REFERENCE))
+            .bindValue("precedingVersion", BookVersionsConstants.VERSION_PROP_PRECEDINGVERSION)
+            .bindValue(SPACE_PREFIX, getSpacePrefix(collectionReference)).execute();
+
+        Map<DocumentReference, String> precedingVersions = new LinkedHashMap<>();
+        for (Object[] result : results) {
+            DocumentReference versionReference =
+                this.referenceResolver.resolve((String) result[0], collectionReference);
+            if (isDescendant(collectionReference, versionReference)) {
+                precedingVersions.put(versionReference, (String) result[1]);
+            }
+        }
+
+        return precedingVersions;
+    }
+
+    /**
+     * Get all the unversioned pages of a collection.
+     *
+     * @param collectionReference the collection reference
+     * @return the references of the unversioned pages of the collection
+     * @throws QueryException in case the query fails
+     */
+    public List<DocumentReference> getUnversionedPages(DocumentReference collectionReference) throws QueryException
+    {
+        List<String> results = this.queryManagerProvider.get()
+            .createQuery("select distinct obj.name from BaseObject obj, IntegerProperty prop "
+                + "where obj.className = :pageClass and obj.id = prop.id.id "
+                + "and prop.id.name = :unversioned and prop.value = 1 "
+                + "and obj.name like :spacePrefix escape '/'", Query.HQL)
+            .bindValue("pageClass", this.localSerializer.serialize(BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE))
+            .bindValue("unversioned", BookVersionsConstants.BOOKPAGE_PROP_UNVERSIONED)
+            .bindValue(SPACE_PREFIX, getSpacePrefix(collectionReference)).execute();
+
+        return resolveDescendants(collectionReference, results);
+    }
+
+    /**
+     * Get the book pages of a collection holding content of their own.
+     *
+     * @param collectionReference the collection reference
+     * @return the references of the book pages of the collection whose content is not empty
+     * @throws QueryException in case the query fails
+     */
+    public List<DocumentReference> getPagesWithContent(DocumentReference collectionReference) throws QueryException
+    {
+        List<String> results = this.queryManagerProvider.get()
+            .createQuery("select distinct doc.fullName from XWikiDocument doc, BaseObject obj "
+                + "where doc.fullName = obj.name and obj.className = :pageClass and doc.translation = 0 "
+                + "and length(doc.content) > 0 and doc.fullName like :spacePrefix escape '/'", Query.HQL)
+            .bindValue("pageClass", this.localSerializer.serialize(BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE))
+            .bindValue(SPACE_PREFIX, getSpacePrefix(collectionReference)).execute();
+
+        return resolveDescendants(collectionReference, results);
+    }
+
+    /**
+     * Get all the documents of a collection which are not book pages: the collection home page, the versions, the
+     * variants, the versioned contents, etc.
+     *
+     * @param collectionReference the collection reference
+     * @return the references of the documents of the collection which are not book pages
+     * @throws QueryException in case the query fails
+     */
+    public List<DocumentReference> getNonPageDocuments(DocumentReference collectionReference) throws QueryException
+    {
+        List<String> results = this.queryManagerProvider.get()
+            .createQuery("select doc.fullName from XWikiDocument doc "
+                + "where doc.fullName like :spacePrefix escape '/' and not exists "
+                + "(select obj.name from BaseObject obj where obj.name = doc.fullName and obj.className = :pageClass)",
+                Query.HQL)
+            .bindValue(SPACE_PREFIX, getSpacePrefix(collectionReference))
+            .bindValue("pageClass", this.localSerializer.serialize(BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE))
+            .execute();
+
+        return resolve(collectionReference, results);
+    }
+
+    /**
+     * Get the documents of a collection holding more than one object of the same book versions class, among the
+     * classes which are expected once per document.
+     *
+     * @param collectionReference the collection reference
+     * @param classReferences the references of the classes expected once per document
+     * @return the local serialized references of the duplicated classes, for each document holding duplicates
+     * @throws QueryException in case the query fails
+     */
+    public Map<DocumentReference, List<String>> getDuplicateObjects(DocumentReference collectionReference,
+        List<EntityReference> classReferences) throws QueryException
+    {
+        List<String> classNames = new ArrayList<>(classReferences.size());
+        for (EntityReference classReference : classReferences) {
+            classNames.add(this.localSerializer.serialize(classReference));
+        }
+        List<Object[]> results = this.queryManagerProvider.get()
+            .createQuery("select obj.name, obj.className from BaseObject obj "
+                + "where obj.className in (:classNames) and obj.name like :spacePrefix escape '/' "
+                + "group by obj.name, obj.className having count(obj.id) > 1", Query.HQL)
+            .bindValue("classNames", classNames)
+            .bindValue(SPACE_PREFIX, getSpacePrefix(collectionReference)).execute();
+
+        Map<DocumentReference, List<String>> duplicates = new LinkedHashMap<>();
+        for (Object[] result : results) {
+            duplicates.computeIfAbsent(this.referenceResolver.resolve((String) result[0], collectionReference),
+                k -> new ArrayList<>()).add((String) result[1]);
+        }
+
+        return duplicates;
+    }
+
+    /**
+     * Get the variants lists of the documents of a collection.
+     *
+     * @param collectionReference the collection reference
+     * @return the values of the variants list, for each document of the collection holding a variants list
+     * @throws QueryException in case the query fails
+     */
+    public Map<DocumentReference, List<String>> getVariantsLists(DocumentReference collectionReference)
+        throws QueryException
+    {
+        return getVariantsLists(getSpacePrefix(collectionReference), collectionReference, null);
+    }
+
+    /**
+     * Get the variants lists of all the documents of a wiki.
+     *
+     * @param wikiReference the wiki reference
+     * @return the values of the variants list, for each document of the wiki holding a variants list
+     * @throws QueryException in case the query fails
+     */
+    public Map<DocumentReference, List<String>> getVariantsLists(WikiReference wikiReference) throws QueryException
+    {
+        return getVariantsLists("%", wikiReference, wikiReference.getName());
+    }
+
+    /**
+     * The values are read from the properties, without loading the documents. The variants list is a non relational
+     * list, stored as a single text value, but the relational storage is supported too, in case the class is changed.
+     */
+    private Map<DocumentReference, List<String>> getVariantsLists(String namePattern, EntityReference baseReference,
+        String wiki) throws QueryException
+    {
+        Map<DocumentReference, List<String>> variantsLists = new LinkedHashMap<>();
+
+        List<Object[]> textResults = createVariantsListsQuery("select obj.name, prop.textValue "
+            + "from BaseObject obj, StringListProperty prop", namePattern, wiki).execute();
+        for (Object[] result : textResults) {
+            variantsLists.computeIfAbsent(this.referenceResolver.resolve((String) result[0], baseReference),
+                k -> new ArrayList<>()).addAll(ListClass.getListFromString((String) result[1], "|", false));
+        }
+
+        List<Object[]> itemResults = createVariantsListsQuery("select obj.name, item "
+            + "from BaseObject obj, DBStringListProperty prop join prop.list item", namePattern, wiki).execute();
+        for (Object[] result : itemResults) {
+            variantsLists.computeIfAbsent(this.referenceResolver.resolve((String) result[0], baseReference),
+                k -> new ArrayList<>()).add((String) result[1]);
+        }
+
+        return variantsLists;
+    }
+
+    private Query createVariantsListsQuery(String select, String namePattern, String wiki) throws QueryException
+    {
+        Query query = this.queryManagerProvider.get()
+            .createQuery(select + " where obj.className = :variantsListClass and obj.id = prop.id.id "
+                + "and prop.id.name = :variantsList and obj.name like :spacePrefix escape '/'", Query.HQL)
+            .bindValue("variantsListClass",
+                this.localSerializer.serialize(BookVersionsConstants.VARIANTSLIST_CLASS_REFERENCE))
+            .bindValue("variantsList", BookVersionsConstants.VARIANTSLIST_PROP_VARIANTS)
+            .bindValue(SPACE_PREFIX, namePattern);
+        if (wiki != null) {
+            query.setWiki(wiki);
+        }
+
+        return query;
+    }
+
+    private String getSpace(DocumentReference collectionReference)
+    {
+        SpaceReference collectionSpace = collectionReference.getLastSpaceReference();
+
+        return this.localSerializer.serialize(collectionSpace);
+    }
+
+    private List<DocumentReference> resolve(DocumentReference collectionReference, List<String> fullNames)
+    {
+        List<DocumentReference> references = new ArrayList<>(fullNames.size());
+        for (String fullName : fullNames) {
+            references.add(this.referenceResolver.resolve(fullName, collectionReference));
+        }
+
+        return references;
+    }
+
+    /**
+     * Resolve the given full names, keeping only the documents located in the spaces below the collection space: a
+     * full name prefix also matches the documents located directly in the collection space.
+     */
+    private List<DocumentReference> resolveDescendants(DocumentReference collectionReference, List<String> fullNames)
+    {
+        List<DocumentReference> references = new ArrayList<>(fullNames.size());
+        for (String fullName : fullNames) {
+            DocumentReference reference = this.referenceResolver.resolve(fullName, collectionReference);
+            if (isDescendant(collectionReference, reference)) {
+                references.add(reference);
+            }
+        }
+
+        return references;
+    }
+
+    private boolean isDescendant(DocumentReference collectionReference, DocumentReference documentReference)
+    {
+        return !collectionReference.getParent().equals(documentReference.getParent());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+/**
+ * Cache telling, for the documents visited while walking up the hierarchy of a page, if they are the root of a
+ * versioned collection (book or library). It allows to resolve the collection of a page with in-memory lookups only,
+ * the entries being invalidated when a book or library definition is added to or removed from a document.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = CollectionReferenceCache.class)
+@Singleton
+public class CollectionReferenceCache implements Initializable, Disposable
+{
+    private static final String CACHE_ID = "bookversions.collectionRoots";
+
+    private static final int CACHE_SIZE = 10000;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    private Cache<Boolean> cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.cache = this.cacheManager.createNewCache(new LRUCacheConfiguration(CACHE_ID, CACHE_SIZE));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the collection roots cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
+    /**
+     * Get the cached information about the given document being a collection root.
+     *
+     * @param documentReference the document reference
+     * @return true if the document is a book or a library, false if it is not, null if the information is not cached
+     */
+    public Boolean get(DocumentReference documentReference)
+    {
+        return this.cache.get(this.serializer.serialize(documentReference));
+    }
+
+    /**
+     * Store the information about the given document being a collection root.
+     *
+     * @param documentReference the document reference
+     * @param isCollection true if the document is a book or a library
+     */
+    public void set(DocumentReference documentReference, boolean isCollection)
+    {
+        this.cache.set(this.serializer.serialize(documentReference), isCollection);
+    }
+
+    /**
+     * Forget the cached information about the given document.
+     *
+     * @param documentReference the document reference
+     */
+    public void remove(DocumentReference documentReference)
+    {
+        this.cache.remove(this.serializer.serialize(documentReference));
+    }
+
+    /**
+     * Forget all the cached information.
+     */
+    public void removeAll()
+    {
+        this.cache.removeAll();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+/**
+ * A snapshot of the state of the {@link VersionedContentCreator}.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class ContentCreationStatus
+{
+    private final boolean importMode;
+
+    private final int pendingCount;
+
+    private final int activeWorkers;
+
+    private final long createdCount;
+
+    private final long failedCount;
+
+    /**
+     * @param importMode true if the versioned contents are created in the background
+     * @param pendingCount the number of versioned contents waiting to be created
+     * @param activeWorkers the number of workers currently creating versioned contents
+     * @param createdCount the number of versioned contents created in the background since the startup
+     * @param failedCount the number of versioned contents which couldn't be created in the background
+     */
+    public ContentCreationStatus(boolean importMode, int pendingCount, int activeWorkers, long createdCount,
+        long failedCount)
+    {
+        this.importMode = importMode;
+        this.pendingCount = pendingCount;
+        this.activeWorkers = activeWorkers;
+        this.createdCount = createdCount;
+        this.failedCount = failedCount;
+    }
+
+    /**
+     * @return true if the versioned contents are created in the background
+     */
+    public boolean isImportMode()
+    {
+        return this.importMode;
+    }
+
+    /**
+     * @return the number of versioned contents waiting to be created
+     */
+    public int getPendingCount()
+    {
+        return this.pendingCount;
+    }
+
+    /**
+     * @return the number of workers currently creating versioned contents
+     */
+    public int getActiveWorkers()
+    {
+        return this.activeWorkers;
+    }
+
+    /**
+     * @return the number of versioned contents created in the background since the startup
+     */
+    public long getCreatedCount()
+    {
+        return this.createdCount;
+    }
+
+    /**
+     * @return the number of versioned contents which couldn't be created in the background
+     */
+    public long getFailedCount()
+    {
+        return this.failedCount;
+    }
+
+    /**
+     * @return true if no versioned content is waiting or being created
+     */
+    public boolean isIdle()
+    {
+        return this.pendingCount == 0 && this.activeWorkers == 0;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.servlet.http.Cookie;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiResponse;
+
+/**
+ * Stores the selection in a browser cookie for each collection, so that no server side state is needed.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Named("cookie")
+@Singleton
+public class CookieSelectionStore implements SelectionStore
+{
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Override
+    public String get(String selection, DocumentReference collectionReference)
+    {
+        XWikiRequest request = this.contextProvider.get().getRequest();
+        if (request == null) {
+            return null;
+        }
+
+        String name = getCookieName(selection, collectionReference);
+        // A value set during the current request is not part of the request cookies yet.
+        Object value = request.getAttribute(name);
+        if (value == null) {
+            Cookie cookie = request.getCookie(name);
+            value = cookie != null ? URLDecoder.decode(cookie.getValue(), StandardCharsets.UTF_8) : null;
+        }
+
+        return StringUtils.defaultIfEmpty((String) value, null);
+    }
+
+    @Override
+    public void set(String selection, DocumentReference collectionReference, String value)
+    {
+        XWikiContext xcontext = this.contextProvider.get();
+        XWikiRequest request = xcontext.getRequest();
+        XWikiResponse response = xcontext.getResponse();
+        if (request == null || response == null) {
+            return;
+        }
+
+        String name = getCookieName(selection, collectionReference);
+        String cookieValue = StringUtils.defaultString(value);
+        request.setAttribute(name, cookieValue);
+
+        Cookie cookie = new Cookie(name, URLEncoder.encode(cookieValue, StandardCharsets.UTF_8));
+        cookie.setPath(StringUtils.defaultIfEmpty(request.getContextPath(), "/"));
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        // Like the session, the selection lasts until the browser is closed, and is removed when emptied.
+        cookie.setMaxAge(value != null ? -1 : 0);
+        response.addCookie(cookie);
+    }
+
+    private String getCookieName(String selection, DocumentReference collectionReference)
+    {
+        return selection + '.'
+            + URLEncoder.encode(this.serializer.serialize(collectionReference), StandardCharsets.UTF_8);
+    }
+}
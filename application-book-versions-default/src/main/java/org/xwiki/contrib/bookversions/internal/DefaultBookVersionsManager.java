@@ -20,21 +20,29 @@
 
 package org.xwiki.contrib.bookversions.internal;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
-import javax.servlet.http.HttpSession;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.contrib.bookversions.BookVersionsManager;
+import org.xwiki.contrib.bookversions.DocumentClassification;
+import org.xwiki.contrib.bookversions.PageContext;
+import org.xwiki.contrib.bookversions.VersionInheritanceException;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
@@ -42,9 +50,7 @@ import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.model.reference.SpaceReference;
 import org.xwiki.model.validation.EntityNameValidation;
-import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryManager;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
@@ -63,12 +69,15 @@ import com.xpn.xwiki.web.XWikiRequest;
 @Singleton
 public class DefaultBookVersionsManager implements BookVersionsManager
 {
+    /**
+     * The configuration key of the maximum number of versions in an inheritance chain.
+     */
+    private static final String INHERITANCE_MAX_DEPTH_KEY = "bookversions.inheritance.maxDepth";
 
-    @Inject
-    private Provider<XWikiContext> contextProvider;
+    private static final int DEFAULT_INHERITANCE_MAX_DEPTH = 100;
 
     @Inject
-    private Provider<QueryManager> queryManagerProvider;
+    private Provider<XWikiContext> contextProvider;
 
     @Inject
     private DocumentReferenceResolver<String> referenceResolver;
@@ -81,6 +90,40 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     @Named("SlugEntityNameValidation")
     private Provider<EntityNameValidation> slugEntityNameValidationProvider;
 
+    @Inject
+    private CollectionReferenceCache collectionReferenceCache;
+
+    @Inject
+    private VersionGraphCache versionGraphCache;
+
+    @Inject
+    private CollectionQueries collectionQueries;
+
+    @Inject
+    private VersionedContentIndex versionedContentIndex;
+
+    @Inject
+    private SelectionStore selectionStore;
+
+    @Inject
+    private VersionsAndVariantsCache versionsAndVariantsCache;
+
+    @Inject
+    private ResolvedContentIndex resolvedContentIndex;
+
+    @Inject
+    private NavigationTreeExclusions navigationTreeExclusions;
+
+    @Inject
+    private RequestMemo requestMemo;
+
+    @Inject
+    private DocumentClassifier documentClassifier;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
     @Inject
     private Logger logger;
 
@@ -89,7 +132,9 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     {
         XWikiContext xcontext = this.getXWikiContext();
 
-        return isBook(this.getXWikiContext().getWiki().getDocument(documentReference, xcontext));
+        return this.requestMemo.check(
+            () -> isBook(xcontext.getWiki().getDocument(documentReference, xcontext)),
+            "isBook", documentReference);
     }
 
     @Override
@@ -103,7 +148,9 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     {
         XWikiContext xcontext = this.getXWikiContext();
 
-        return isPage(xcontext.getWiki().getDocument(documentReference, xcontext));
+        return this.requestMemo.check(
+            () -> isPage(xcontext.getWiki().getDocument(documentReference, xcontext)),
+            "isPage", documentReference);
     }
 
     @Override
@@ -117,7 +164,9 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     {
         XWikiContext xcontext = this.getXWikiContext();
 
-        return isVersionedPage(xcontext.getWiki().getDocument(documentReference, xcontext));
+        return this.requestMemo.check(
+            () -> isVersionedPage(xcontext.getWiki().getDocument(documentReference, xcontext)),
+            "isVersionedPage", documentReference);
     }
 
     @Override
@@ -131,7 +180,9 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     {
         XWikiContext xcontext = this.getXWikiContext();
 
-        return isVersionedContent(xcontext.getWiki().getDocument(documentReference, xcontext));
+        return this.requestMemo.check(
+            () -> isVersionedContent(xcontext.getWiki().getDocument(documentReference, xcontext)),
+            "isVersionedContent", documentReference);
     }
 
     @Override
@@ -143,8 +194,25 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     @Override
     public boolean isPossibleVersionedContentReference(DocumentReference collectionReference,
         DocumentReference documentReference) throws XWikiException
+    {
+        return this.requestMemo.check(
+            () -> computeIsPossibleVersionedContentReference(collectionReference, documentReference),
+            "isPossibleVersionedContentReference", collectionReference, documentReference);
+    }
+
+    private boolean computeIsPossibleVersionedContentReference(DocumentReference collectionReference,
+        DocumentReference documentReference) throws XWikiException
     {
         if (collectionReference != null && documentReference != null) {
+            try {
+                DocumentReference versionedCollectionReference = getVersionedCollectionReference(collectionReference);
+                if (versionedCollectionReference != null) {
+                    return getVersionReference(versionedCollectionReference, documentReference.getName()) != null;
+                }
+            } catch (QueryException e) {
+                logger.warn("Failed to get the collection of [{}], looking for the version next to it instead. "
+                    + "Root cause: [{}]", collectionReference, ExceptionUtils.getRootCauseMessage(e));
+            }
             DocumentReference versionRef = getVersionReference(collectionReference, documentReference.getName());
             if (versionRef != null) {
                 return true;
@@ -158,7 +226,9 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     {
         XWikiContext xcontext = this.getXWikiContext();
 
-        return isVersion(xcontext.getWiki().getDocument(documentReference, xcontext));
+        return this.requestMemo.check(
+            () -> isVersion(xcontext.getWiki().getDocument(documentReference, xcontext)),
+            "isVersion", documentReference);
     }
 
     @Override
@@ -172,7 +242,9 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     {
         XWikiContext xcontext = this.getXWikiContext();
 
-        return isVariant(xcontext.getWiki().getDocument(documentReference, xcontext));
+        return this.requestMemo.check(
+            () -> isVariant(xcontext.getWiki().getDocument(documentReference, xcontext)),
+            "isVariant", documentReference);
     }
 
     private boolean isVariant(XWikiDocument document) throws XWikiException
@@ -185,7 +257,9 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     {
         XWikiContext xcontext = this.getXWikiContext();
 
-        return isLibrary(xcontext.getWiki().getDocument(documentReference, xcontext));
+        return this.requestMemo.check(
+            () -> isLibrary(xcontext.getWiki().getDocument(documentReference, xcontext)),
+            "isLibrary", documentReference);
     }
 
     private boolean isLibrary(XWikiDocument document) throws XWikiException
@@ -223,33 +297,27 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     @Override
     public String getSelectedVersion(DocumentReference documentReference) throws XWikiException, QueryException
     {
-        if (documentReference == null) {
+        return this.requestMemo.get(() -> computeSelectedVersion(documentReference),
+            "getSelectedVersion", documentReference);
+    }
+
+    private String computeSelectedVersion(DocumentReference documentReference) throws XWikiException, QueryException
+    {
+        DocumentReference versionedCollectionReference = getVersionedCollectionReference(documentReference);
+        if (versionedCollectionReference == null) {
             return null;
         }
 
-        Map<String, String> versionsMap = new HashMap<String, String>();
-        XWikiRequest request = getXWikiContext().getRequest();
-        HttpSession session = request.getSession();
-        if (session != null) {
-            versionsMap = (Map<String, String>) session.getAttribute(BookVersionsConstants.SESSION_SELECTEDVERSION);
-
-            if (versionsMap != null) {
-                Iterator<?> it = versionsMap.entrySet().iterator();
-                DocumentReference versionedCollectionReference = getVersionedCollectionReference(documentReference);
-
-                while (it.hasNext()) {
-                    Map.Entry<String, String> collectionVersion = (Map.Entry<String, String>) it.next();
-                    String collectionReference = collectionVersion.getKey();
-                    if (!collectionReference.isBlank()
-                        && collectionReference.equals(localSerializer.serialize(versionedCollectionReference))) {
-                        return collectionVersion.getValue();
-                    }
-
-                }
+        // A version given in the URL takes precedence, so that the page doesn't depend on the session.
+        String requestedVersion = getRequestParameter(BookVersionsConstants.REQUEST_SELECTEDVERSION);
+        if (requestedVersion != null) {
+            DocumentReference versionReference = getVersionReference(versionedCollectionReference, requestedVersion);
+            if (versionReference != null) {
+                return localSerializer.serialize(versionReference);
             }
         }
 
-        return null;
+        return this.selectionStore.get(SelectionStore.VERSION, versionedCollectionReference);
     }
 
     @Override
@@ -259,48 +327,35 @@ public class DefaultBookVersionsManager implements BookVersionsManager
             return;
         }
 
-        Map<String, String> versionsMap = new HashMap<String, String>();
-        XWikiRequest request = getXWikiContext().getRequest();
-        HttpSession session = request.getSession();
-        if (session != null) {
-            Object sessionAttribute = session.getAttribute(BookVersionsConstants.SESSION_SELECTEDVERSION);
-            versionsMap = sessionAttribute != null ? (Map<String, String>) sessionAttribute : versionsMap;
-            String collectionReferenceSerialized = localSerializer.serialize(documentReference);
-            versionsMap.put(collectionReferenceSerialized, version);
-            session.setAttribute(BookVersionsConstants.SESSION_SELECTEDVERSION, versionsMap);
-        }
+        this.selectionStore.set(SelectionStore.VERSION, documentReference, version);
+        // The selection changes the answer of most lookups
+        this.requestMemo.clear();
     }
 
     @Override
     public String getSelectedVariant(DocumentReference documentReference) throws XWikiException, QueryException
     {
-        if (documentReference == null) {
+        return this.requestMemo.get(() -> computeSelectedVariant(documentReference),
+            "getSelectedVariant", documentReference);
+    }
+
+    private String computeSelectedVariant(DocumentReference documentReference) throws XWikiException, QueryException
+    {
+        DocumentReference versionedCollectionReference = getVersionedCollectionReference(documentReference);
+        if (versionedCollectionReference == null) {
             return null;
         }
 
-        Map<String, String> variantsMap = new HashMap<String, String>();
-        XWikiRequest request = getXWikiContext().getRequest();
-        HttpSession session = request.getSession();
-        if (session != null) {
-            variantsMap = (Map<String, String>) session.getAttribute(BookVersionsConstants.SESSION_SELECTEDVARIANT);
-
-            if (variantsMap != null) {
-                Iterator<?> it = variantsMap.entrySet().iterator();
-                DocumentReference versionedCollectionReference = getVersionedCollectionReference(documentReference);
-
-                while (it.hasNext()) {
-                    Map.Entry<String, String> collectionVariant = (Map.Entry<String, String>) it.next();
-                    String collectionReference = collectionVariant.getKey();
-                    if (!collectionReference.isBlank()
-                        && collectionReference.equals(localSerializer.serialize(versionedCollectionReference))) {
-                        return collectionVariant.getValue();
-                    }
-
-                }
+        // A variant given in the URL takes precedence, so that the page doesn't depend on the session.
+        String requestedVariant = getRequestParameter(BookVersionsConstants.REQUEST_SELECTEDVARIANT);
+        if (requestedVariant != null) {
+            DocumentReference variantReference = getVariantReference(versionedCollectionReference, requestedVariant);
+            if (variantReference != null) {
+                return localSerializer.serialize(variantReference);
             }
         }
 
-        return null;
+        return this.selectionStore.get(SelectionStore.VARIANT, versionedCollectionReference);
     }
 
     @Override
@@ -310,16 +365,16 @@ public class DefaultBookVersionsManager implements BookVersionsManager
             return;
         }
 
-        Map<String, String> variantsMap = new HashMap<String, String>();
+        this.selectionStore.set(SelectionStore.VARIANT, documentReference, variant);
+        // The selection changes the answer of most lookups
+        this.requestMemo.clear();
+    }
+
+    private String getRequestParameter(String name)
+    {
         XWikiRequest request = getXWikiContext().getRequest();
-        HttpSession session = request.getSession();
-        if (session != null) {
-            Object sessionAttribute = session.getAttribute(BookVersionsConstants.SESSION_SELECTEDVARIANT);
-            variantsMap = sessionAttribute != null ? (Map<String, String>) sessionAttribute : variantsMap;
-            String collectionReferenceSerialized = localSerializer.serialize(documentReference);
-            variantsMap.put(collectionReferenceSerialized, variant);
-            session.setAttribute(BookVersionsConstants.SESSION_SELECTEDVARIANT, variantsMap);
-        }
+
+        return request != null ? StringUtils.defaultIfBlank(request.getParameter(name), null) : null;
     }
 
     @Override
@@ -370,6 +425,16 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     public DocumentReference getVersionReference(DocumentReference collectionReference, String version)
         throws XWikiException
     {
+        // Look for the version in the name index of the collection, instead of probing the candidate documents
+        if (isCollection(collectionReference)) {
+            try {
+                return this.versionsAndVariantsCache.get(collectionReference).getVersionReference(version);
+            } catch (QueryException e) {
+                logger.warn("Failed to get the versions of [{}], loading the version documents instead. "
+                    + "Root cause: [{}]", collectionReference, ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+
         // Search first for the terminal document : Book.Versions.MyVersion
         SpaceReference versionParentSpaceReference =
             new SpaceReference(new EntityReference(BookVersionsConstants.VERSIONS_LOCATION, EntityType.SPACE,
@@ -392,6 +457,16 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     public DocumentReference getVariantReference(DocumentReference collectionReference, String variant)
         throws XWikiException
     {
+        // Look for the variant in the name index of the collection, instead of probing the candidate documents
+        if (isCollection(collectionReference)) {
+            try {
+                return this.versionsAndVariantsCache.get(collectionReference).getVariantReference(variant);
+            } catch (QueryException e) {
+                logger.warn("Failed to get the variants of [{}], loading the variant documents instead. "
+                    + "Root cause: [{}]", collectionReference, ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+
         // Search first for the terminal document : Book.Versions.MyVersion
         SpaceReference variantParentSpaceReference =
             new SpaceReference(new EntityReference(BookVersionsConstants.VARIANTS_LOCATION, EntityType.SPACE,
@@ -414,64 +489,46 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     public List<String> getCollectionVersions(DocumentReference collectionReference)
         throws QueryException, XWikiException
     {
-        if (collectionReference != null) {
-            DocumentReference versionedCollectionReference = getVersionedCollectionReference(collectionReference);
-
-            if (versionedCollectionReference != null) {
-
-                SpaceReference collectionSpace = versionedCollectionReference.getLastSpaceReference();
-                String collectionSpaceSerialized = localSerializer.serialize(collectionSpace);
-                String spacePrefix = collectionSpaceSerialized.replaceAll("([%_/])", "/$1").concat(".%");
+        VersionsAndVariants versionsAndVariants = getVersionsAndVariants(collectionReference);
+        List<String> result = versionsAndVariants != null ? versionsAndVariants.getVersions() : Collections.emptyList();
 
-                logger.debug("[getCollectionVersions] collectionSpaceSerialized : [{}]", collectionSpaceSerialized);
-                logger.debug("[getCollectionVersions] spacePrefix : [{}]", spacePrefix);
+        logger.debug("[getCollectionVersions] result : [{}]", result);
 
-                // Query inspired from getDocumentReferences of DefaultModelBridge.java in xwiki-platform
-                List<String> result = this.queryManagerProvider.get()
-                    .createQuery(", BaseObject as obj where doc.fullName = obj.name and obj.className = :versionClass "
-                        + "and doc.space like :space escape '/' order by doc.creationDate desc", Query.HQL)
-                    .bindValue("versionClass", localSerializer.serialize(BookVersionsConstants.VERSION_CLASS_REFERENCE))
-                    .bindValue("space", spacePrefix).execute();
+        return result;
+    }
 
-                logger.debug("[getCollectionVersions] result : [{}]", result);
+    @Override
+    public List<String> getCollectionVariants(DocumentReference collectionReference)
+        throws QueryException, XWikiException
+    {
+        VersionsAndVariants versionsAndVariants = getVersionsAndVariants(collectionReference);
+        List<String> result = versionsAndVariants != null ? versionsAndVariants.getVariants() : Collections.emptyList();
 
-                return result;
-            }
-        }
+        logger.debug("[getCollectionVariants] result : [{}]", result);
 
-        return Collections.emptyList();
+        return result;
     }
 
-    @Override
-    public List<String> getCollectionVariants(DocumentReference collectionReference)
+    /**
+     * Get the versions and the variants of a collection, queried together and cached until one of them changes.
+     *
+     * @param collectionReference the reference of the collection, or of one of its documents
+     * @return the versions and variants of the collection, or null if the reference is not part of a collection
+     * @throws QueryException
+     * @throws XWikiException
+     */
+    private VersionsAndVariants getVersionsAndVariants(DocumentReference collectionReference)
         throws QueryException, XWikiException
     {
         if (collectionReference != null) {
             DocumentReference versionedCollectionReference = getVersionedCollectionReference(collectionReference);
 
             if (versionedCollectionReference != null) {
-
-                SpaceReference collectionSpace = versionedCollectionReference.getLastSpaceReference();
-                String collectionSpaceSerialized = localSerializer.serialize(collectionSpace);
-                String spacePrefix = collectionSpaceSerialized.replaceAll("([%_/])", "/$1").concat(".%");
-
-                logger.debug("[getCollectionVersions] collectionSpaceSerialized : [{}]", collectionSpaceSerialized);
-                logger.debug("[getCollectionVersions] spacePrefix : [{}]", spacePrefix);
-
-                // Query inspired from getDocumentReferences of DefaultModelBridge.java in xwiki-platform
-                List<String> result = this.queryManagerProvider.get()
-                    .createQuery(", BaseObject as obj where doc.fullName = obj.name and obj.className = :variantClass "
-                        + "and doc.space like :space escape '/' order by doc.creationDate desc", Query.HQL)
-                    .bindValue("variantClass", localSerializer.serialize(BookVersionsConstants.VARIANT_CLASS_REFERENCE))
-                    .bindValue("space", spacePrefix).execute();
-
-                logger.debug("[getCollectionVersions] result : [{}]", result);
-
-                return result;
+                return this.versionsAndVariantsCache.get(versionedCollectionReference);
             }
         }
 
-        return Collections.emptyList();
+        return null;
     }
 
     /**
@@ -481,14 +538,34 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     public DocumentReference getVersionedCollectionReference(DocumentReference documentReference)
         throws XWikiException, QueryException
     {
-        if (documentReference == null) {
-            return null;
-        }
+        return this.requestMemo.get(() -> computeVersionedCollectionReference(documentReference),
+            "getVersionedCollectionReference", documentReference);
+    }
 
-        if (isBook(documentReference) || isLibrary(documentReference)) {
-            return documentReference;
+    private DocumentReference computeVersionedCollectionReference(DocumentReference documentReference)
+        throws XWikiException, QueryException
+    {
+        // Walk up the parents iteratively, until the one storing the collection definition.
+        DocumentReference currentReference = documentReference;
+        while (currentReference != null) {
+            if (isCollection(currentReference)) {
+                return currentReference;
+            }
+
+            currentReference = getParentDocumentReference(currentReference);
         }
 
+        return null;
+    }
+
+    /**
+     * Get the document above the given one: its parent document, or else the home page of its parent space.
+     *
+     * @param documentReference the document reference
+     * @return the reference of the document above the given one, or null if there is none
+     */
+    private DocumentReference getParentDocumentReference(DocumentReference documentReference)
+    {
         EntityReference entityReference = documentReference.getParent();
 
         if (entityReference != null) {
@@ -496,42 +573,63 @@ public class DefaultBookVersionsManager implements BookVersionsManager
             // Check if the parent is a document.
             EntityReference documentEntityReference = entityReference.extractReference(EntityType.DOCUMENT);
             if (documentEntityReference != null) {
-                DocumentReference parentDocumentReference = documentEntityReference instanceof DocumentReference
+                return documentEntityReference instanceof DocumentReference
                     ? (DocumentReference) documentEntityReference : new DocumentReference(documentEntityReference);
-
-                // Verify recursively if the parent is storing the collection definition.
-                return getVersionedCollectionReference(parentDocumentReference);
             } else {
                 // Check if the parent is a space.
                 SpaceReference parentSpaceReference = getSpaceReference(entityReference);
 
                 // If so and but it's the last space of the given reference,
-                // then go upper with one level, to the parent of the parent to avoid Stack Overflow.
+                // then go upper with one level, to the parent of the parent to avoid looping on the same document.
                 if (parentSpaceReference != null
                     && parentSpaceReference.equals(documentReference.getLastSpaceReference())) {
                     parentSpaceReference = getSpaceReference(parentSpaceReference.getParent());
                 }
 
                 // Get the document reference of the root for the parent space.
-                DocumentReference parentDocumentReference = parentSpaceReference != null ? new DocumentReference(
+                return parentSpaceReference != null ? new DocumentReference(
                     this.getXWikiContext().getWiki().DEFAULT_SPACE_HOMEPAGE, parentSpaceReference) : null;
-
-                // Verify recursively if this document is storing the collection definition.
-                return getVersionedCollectionReference(parentDocumentReference);
             }
         }
 
         return null;
     }
 
+    /**
+     * Check if the given reference is a versioned collection (book or library), using the cached information if any.
+     *
+     * @param documentReference the document reference
+     * @return true if the given reference is a book or a library
+     * @throws XWikiException
+     */
+    private boolean isCollection(DocumentReference documentReference) throws XWikiException
+    {
+        Boolean isCollection = this.collectionReferenceCache.get(documentReference);
+
+        if (isCollection == null) {
+            XWikiContext xcontext = this.getXWikiContext();
+            XWikiDocument document = xcontext.getWiki().getDocument(documentReference, xcontext);
+            isCollection = isBook(document) || isLibrary(document);
+            this.collectionReferenceCache.set(documentReference, isCollection);
+        }
+
+        return isCollection;
+    }
+
     @Override
     public boolean hasContentForVersion(DocumentReference documentReference, String version)
         throws QueryException, XWikiException
+    {
+        return this.requestMemo.get(() -> computeHasContentForVersion(documentReference, version),
+            "hasContentForVersion", documentReference, version);
+    }
+
+    private boolean computeHasContentForVersion(DocumentReference documentReference, String version)
+        throws QueryException, XWikiException
     {
         if (version.isBlank() || documentReference == null) {
             return false;
         }
-        XWikiContext xcontext = this.getXWikiContext();
         DocumentReference pageReference = documentReference;
 
         // If the reference is not a page, go to its parent, assuming that the current ref is a versioned content page.
@@ -552,7 +650,29 @@ public class DefaultBookVersionsManager implements BookVersionsManager
         }
 
         DocumentReference versionedContentReference = this.getVersionedContentReference(pageReference, version);
-        return versionedContentReference != null && xcontext.getWiki().exists(versionedContentReference, xcontext);
+        return versionedContentReference != null
+            && contentExists(getVersionedCollectionReference(pageReference), versionedContentReference);
+    }
+
+    /**
+     * Check if a versioned content exists, using the versioned content index of its collection. Only the documents
+     * holding a versioned content object are known by the index; repairing the documents missing it with the
+     * consistency scan saves them, which adds them to the index.
+     *
+     * @param collectionReference the reference of the collection of the content, if any
+     * @param contentReference the reference of the versioned content
+     * @return true if the versioned content exists
+     * @throws QueryException
+     */
+    private boolean contentExists(DocumentReference collectionReference, DocumentReference contentReference)
+        throws QueryException
+    {
+        if (collectionReference == null) {
+            XWikiContext xcontext = this.getXWikiContext();
+            return xcontext.getWiki().exists(contentReference, xcontext);
+        }
+
+        return this.versionedContentIndex.exists(collectionReference, contentReference);
     }
 
     @Override
@@ -580,6 +700,13 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     @Override
     public DocumentReference getVersionedContentReference(DocumentReference documentReference)
         throws XWikiException, QueryException
+    {
+        return this.requestMemo.get(() -> computeVersionedContentReference(documentReference),
+            "getVersionedContentReference", documentReference);
+    }
+
+    private DocumentReference computeVersionedContentReference(DocumentReference documentReference)
+        throws XWikiException, QueryException
     {
         return isVersionedPage(documentReference)
             ? getVersionedContentReference(documentReference, getSelectedVersion(documentReference)) : null;
@@ -632,6 +759,13 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     @Override
     public DocumentReference getInheritedVersionedContentReference(DocumentReference documentReference)
         throws XWikiException, QueryException
+    {
+        return this.requestMemo.get(() -> computeInheritedVersionedContentReference(documentReference),
+            "getInheritedVersionedContentReference", documentReference);
+    }
+
+    private DocumentReference computeInheritedVersionedContentReference(DocumentReference documentReference)
+        throws XWikiException, QueryException
     {
         DocumentReference versionDocumentReference = getVersionedContentReference(documentReference);
 
@@ -645,109 +779,352 @@ public class DefaultBookVersionsManager implements BookVersionsManager
     @Override
     public DocumentReference getInheritedContentVersionReference(DocumentReference pageReference,
         DocumentReference versionReference) throws QueryException, XWikiException
+    {
+        return this.requestMemo.get(() -> computeInheritedContentVersionReference(pageReference, versionReference),
+            "getInheritedContentVersionReference", pageReference, versionReference);
+    }
+
+    private DocumentReference computeInheritedContentVersionReference(DocumentReference pageReference,
+        DocumentReference versionReference) throws QueryException, XWikiException
     {
         if (pageReference != null && versionReference != null) {
             // TO DO: check if the page is unversioned, or not
-            XWikiContext xcontext = this.getXWikiContext();
-            XWiki xwiki = xcontext.getWiki();
+            if (this.resolvedContentIndex.isEnabled()) {
+                DocumentReference collectionReference = getVersionedCollectionReference(pageReference);
+                if (collectionReference != null) {
+                    return getResolvedContents(collectionReference, versionReference).get(pageReference.getParent());
+                }
+            }
+
+            return getPrecedingContentVersionReference(pageReference, versionReference);
+        }
+
+        return null;
+    }
 
-            String versionName = getVersionName(versionReference);
+    private DocumentReference getPrecedingContentVersionReference(DocumentReference pageReference,
+        DocumentReference versionReference) throws QueryException, XWikiException
+    {
+        DocumentReference collectionReference = getVersionedCollectionReference(pageReference);
 
-            logger.debug("[getInheritedContentVersionReference] versionName : [{}]", versionName);
+        // Walk the version and the versions it inherits from, the chain being resolved in memory.
+        for (DocumentReference inheritedVersionReference : getVersionInheritanceChain(versionReference)) {
+            String versionName = getVersionName(inheritedVersionReference);
 
-            while (!versionName.isEmpty() && versionName != null) {
-                DocumentReference versionedContentRef = new DocumentReference(
-                    new EntityReference(versionName, EntityType.DOCUMENT, pageReference.getParent()));
+            logger.debug("[getPrecedingContentVersionReference] versionName : [{}]", versionName);
 
-                logger.debug("[getInheritedContentVersionReference] versionedContentRef : [{}]", versionedContentRef);
+            if (versionName.isEmpty()) {
+                break;
+            }
 
-                if (xwiki.exists(versionedContentRef, xcontext)) {
-                    // Content exists for this version of the page
-                    return versionedContentRef;
-                } else {
-                    // Content does not exists for this version. Lets check if there is content in a version to be
-                    // inherited
-                    return getPrecedingContentVersionReference(pageReference, versionReference);
-                }
+            DocumentReference versionedContentReference =
+                new DocumentReference(new EntityReference(versionName, EntityType.DOCUMENT, pageReference.getParent()));
+
+            if (contentExists(collectionReference, versionedContentReference)) {
+                // Found the content corresponding to the given version
+                return versionedContentReference;
             }
         }
 
+        // No version in the chain has content for this page, there's nothing to inherit from
         return null;
     }
 
-    private DocumentReference getPrecedingContentVersionReference(DocumentReference pageReference,
-        DocumentReference versionReference) throws QueryException, XWikiException
+    /**
+     * Get the given version followed by all the versions it inherits from.
+     *
+     * @param versionReference the version reference
+     * @return the inheritance chain of the given version, starting with the version itself
+     * @throws QueryException
+     * @throws XWikiException a {@link VersionInheritanceException} if the chain has a cycle or is too long
+     */
+    private List<DocumentReference> getVersionInheritanceChain(DocumentReference versionReference)
+        throws QueryException, XWikiException
     {
-        XWikiContext xcontext = this.getXWikiContext();
-        XWiki xwiki = xcontext.getWiki();
+        DocumentReference collectionReference = getVersionedCollectionReference(versionReference);
 
-        if (versionReference == null) {
-            // This is the first version in the tree, there's nothing to inherit from
-            return null;
+        if (collectionReference == null) {
+            return Collections.singletonList(versionReference);
         }
 
-        DocumentReference versionedContentReference = new DocumentReference(
-            new EntityReference(getVersionName(versionReference), EntityType.DOCUMENT, pageReference.getParent()));
+        return getVersionGraph(collectionReference).getInheritanceChain(versionReference,
+            this.configuration.getProperty(INHERITANCE_MAX_DEPTH_KEY, DEFAULT_INHERITANCE_MAX_DEPTH));
+    }
 
-        if (xwiki.exists(versionedContentReference, xcontext)) {
-            // Found the content corresponding to the given version
-            return versionedContentReference;
-        } else {
-            // No versioned content found, so search in the preceding version
-            return xwiki.exists(versionedContentReference, xcontext) ? versionedContentReference
-                : getPrecedingContentVersionReference(pageReference, getPreviousVersion(versionReference));
-        }
+    /**
+     * Get the graph of the versions of a collection, built from the storage the first time it is needed.
+     *
+     * @param collectionReference the collection reference
+     * @return the version graph of the collection
+     * @throws QueryException
+     * @throws XWikiException
+     */
+    private VersionGraph getVersionGraph(DocumentReference collectionReference) throws QueryException, XWikiException
+    {
+        return this.versionGraphCache.get(collectionReference, () -> buildVersionGraph(collectionReference));
     }
 
-    private DocumentReference getPreviousVersion(DocumentReference versionReference) throws XWikiException
+    private VersionGraph buildVersionGraph(DocumentReference collectionReference) throws QueryException, XWikiException
     {
-        XWikiContext xcontext = this.getXWikiContext();
+        Map<DocumentReference, DocumentReference> precedingVersions = new LinkedHashMap<>();
+        for (String version : getCollectionVersions(collectionReference)) {
+            precedingVersions.put(referenceResolver.resolve(version, collectionReference), null);
+        }
 
-        XWikiDocument versionDocument = xcontext.getWiki().getDocument(versionReference, xcontext);
-        BaseObject versionObject = versionDocument.getXObject(BookVersionsConstants.VERSION_CLASS_REFERENCE);
-        if (versionObject == null) {
-            logger.warn("Version [{}] is missing the object [{}].", versionDocument.getDocumentReference().toString(),
-                BookVersionsConstants.VERSION_CLASS_REFERENCE.toString());
-            return null;
+        // Get all the preceding version links of the collection at once, instead of loading each version document
+        for (Map.Entry<DocumentReference, String> precedingVersion : this.collectionQueries
+            .getPrecedingVersions(collectionReference).entrySet()) {
+            if (StringUtils.isNotBlank(precedingVersion.getValue())) {
+                DocumentReference versionReference = precedingVersion.getKey();
+                precedingVersions.put(versionReference,
+                    referenceResolver.resolve(precedingVersion.getValue(), versionReference));
+            }
         }
 
-        String previousVersion = versionObject.getStringValue(BookVersionsConstants.VERSION_PROP_PRECEDINGVERSION);
-        return !previousVersion.isBlank()
-            ? referenceResolver.resolve(previousVersion).setWikiReference(this.getXWikiContext().getWikiReference())
-            : null;
+        VersionGraph graph = VersionGraph.create(precedingVersions);
+
+        logger.debug("[buildVersionGraph] graph of [{}] : [{}]", collectionReference, graph);
+
+        return graph;
     }
 
     @Override
     public DocumentReference getInheritedContentReference(DocumentReference pageReference,
         DocumentReference versionReference) throws QueryException, XWikiException
     {
-        if (pageReference != null && versionReference != null) {
-            XWikiContext xcontext = this.getXWikiContext();
+        return this.requestMemo.get(() -> computeInheritedContentReference(pageReference, versionReference),
+            "getInheritedContentReference", pageReference, versionReference);
+    }
 
-            DocumentReference versionPageReference =
+    private DocumentReference computeInheritedContentReference(DocumentReference pageReference,
+        DocumentReference versionReference) throws QueryException, XWikiException
+    {
+        if (pageReference != null && versionReference != null) {
+            // The content returned for the inherited version has already been checked for existence.
+            DocumentReference versionedContentRef =
                 getInheritedContentVersionReference(pageReference, versionReference);
 
-            logger.debug("[getInheritedContentReference] versionPageReference : [{}]", versionPageReference);
+            logger.debug("[getInheritedContentReference] versionedContentRef : [{}]", versionedContentRef);
+
+            return versionedContentRef;
+        }
+
+        return null;
+    }
+
+    @Override
+    public DocumentReference resolveVersionedContentReference(DocumentReference pageReference)
+        throws QueryException, XWikiException
+    {
+        return this.requestMemo.get(() -> computeResolveVersionedContentReference(pageReference),
+            "resolveVersionedContentReference", pageReference);
+    }
+
+    private DocumentReference computeResolveVersionedContentReference(DocumentReference pageReference)
+        throws QueryException, XWikiException
+    {
+        if (pageReference == null || !isVersionedPage(pageReference)) {
+            return null;
+        }
 
-            if (versionPageReference == null) {
+        DocumentReference collectionReference = getVersionedCollectionReference(pageReference);
+        if (collectionReference == null) {
+            return null;
+        }
+
+        return resolveVersionedContentReference(pageReference, collectionReference,
+            getSelectedVersion(collectionReference), getCollectionVersions(collectionReference));
+    }
+
+    private DocumentReference resolveVersionedContentReference(DocumentReference pageReference,
+        DocumentReference collectionReference, String selectedVersion, List<String> versions)
+        throws QueryException, XWikiException
+    {
+        String version = selectedVersion;
+        if (StringUtils.isBlank(version)) {
+            if (versions.isEmpty()) {
                 return null;
             }
-            String versionName = getVersionName(versionPageReference);
+            version = versions.get(0);
+        }
 
-            logger.debug("[getInheritedContentReference] versionName : [{}]", versionName);
+        DocumentReference versionedContentRef =
+            getInheritedContentVersionReference(pageReference, referenceResolver.resolve(version, collectionReference));
 
-            DocumentReference versionedContentRef =
-                new DocumentReference(new EntityReference(versionName, EntityType.DOCUMENT, pageReference.getParent()));
+        logger.debug("[resolveVersionedContentReference] versionedContentRef : [{}]", versionedContentRef);
 
-            logger.debug("[getInheritedContentReference] versionedContentRef : [{}]", versionedContentRef);
+        return versionedContentRef;
+    }
+
+    @Override
+    public Map<DocumentReference, DocumentClassification> classify(Collection<DocumentReference> documentReferences)
+        throws QueryException
+    {
+        if (documentReferences == null || documentReferences.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<DocumentReference, DocumentClassification> classifications =
+            this.documentClassifier.classify(documentReferences);
+
+        // Answer the following checks of these documents without loading them
+        for (Map.Entry<DocumentReference, DocumentClassification> classification : classifications.entrySet()) {
+            DocumentReference documentReference = classification.getKey();
+            DocumentClassification types = classification.getValue();
+            this.requestMemo.remember(types.isBook(), "isBook", documentReference);
+            this.requestMemo.remember(types.isLibrary(), "isLibrary", documentReference);
+            this.requestMemo.remember(types.isPage(), "isPage", documentReference);
+            this.requestMemo.remember(types.isVersionedPage(), "isVersionedPage", documentReference);
+            this.requestMemo.remember(types.isVersionedContent(), "isVersionedContent", documentReference);
+            this.requestMemo.remember(types.isVersion(), "isVersion", documentReference);
+            this.requestMemo.remember(types.isVariant(), "isVariant", documentReference);
+        }
+
+        return classifications;
+    }
+
+    @Override
+    public PageContext getPageContext(DocumentReference documentReference) throws QueryException, XWikiException
+    {
+        if (documentReference == null) {
+            return null;
+        }
+
+        return this.requestMemo.get(() -> computePageContext(documentReference), "getPageContext", documentReference);
+    }
 
-            if (xcontext.getWiki().exists(versionedContentRef, xcontext)) {
-                // Content exists for this version of the page
-                return versionedContentRef;
+    private PageContext computePageContext(DocumentReference documentReference) throws QueryException, XWikiException
+    {
+        XWikiContext xcontext = this.getXWikiContext();
+        XWikiDocument document = xcontext.getWiki().getDocument(documentReference, xcontext);
+        boolean isPage = isPage(document);
+        boolean isVersionedPage = isVersionedPage(document);
+        boolean isVersionedContent = isVersionedContent(document);
+
+        DefaultPageContext.Builder builder = new DefaultPageContext.Builder(documentReference)
+            .collectionKind(isBook(document), isLibrary(document))
+            .pageKind(isPage, isVersionedPage, isVersionedContent);
+
+        DocumentReference collectionReference = getVersionedCollectionReference(documentReference);
+        if (collectionReference != null) {
+            String selectedVersion = getSelectedVersion(collectionReference);
+            VersionsAndVariants versionsAndVariants = this.versionsAndVariantsCache.get(collectionReference);
+            builder.collection(collectionReference)
+                .selection(selectedVersion, getSelectedVariant(collectionReference))
+                .versionsAndVariants(versionsAndVariants.getVersions(), versionsAndVariants.getVariants());
+
+            if (isVersionedPage) {
+                builder.content(resolveVersionedContentReference(documentReference, collectionReference,
+                    selectedVersion, versionsAndVariants.getVersions()));
             }
         }
+        if ((isPage && !isVersionedPage) || isVersionedContent) {
+            builder.content(documentReference);
+        }
 
-        return null;
+        PageContext pageContext = builder.build();
+
+        logger.debug("[getPageContext] pageContext : [{}]", pageContext);
+
+        return pageContext;
+    }
+
+    @Override
+    public Map<DocumentReference, DocumentReference> getInheritedContentReferences(
+        DocumentReference collectionReference, DocumentReference versionReference) throws QueryException, XWikiException
+    {
+        DocumentReference versionedCollectionReference = getVersionedCollectionReference(collectionReference);
+        if (versionedCollectionReference == null || versionReference == null) {
+            return Collections.emptyMap();
+        }
+
+        Map<DocumentReference, DocumentReference> contentReferences = new LinkedHashMap<>();
+        String homepage = this.getXWikiContext().getWiki().DEFAULT_SPACE_HOMEPAGE;
+        for (Map.Entry<EntityReference, DocumentReference> pageContent : getResolvedContents(
+            versionedCollectionReference, versionReference).entrySet()) {
+            contentReferences.put(
+                new DocumentReference(new EntityReference(homepage, EntityType.DOCUMENT, pageContent.getKey())),
+                pageContent.getValue());
+        }
+
+        // Unversioned pages display their own content
+        for (DocumentReference pageReference : this.collectionQueries
+            .getUnversionedPages(versionedCollectionReference)) {
+            contentReferences.put(pageReference, pageReference);
+        }
+
+        return contentReferences;
+    }
+
+    @Override
+    public Set<DocumentReference> getVisiblePages(DocumentReference collectionReference,
+        DocumentReference versionReference, DocumentReference variantReference) throws QueryException, XWikiException
+    {
+        DocumentReference versionedCollectionReference = getVersionedCollectionReference(collectionReference);
+        if (versionedCollectionReference == null) {
+            return Collections.emptySet();
+        }
+
+        return this.navigationTreeExclusions.getVisiblePages(versionedCollectionReference, versionReference,
+            variantReference);
+    }
+
+    private Map<EntityReference, DocumentReference> getResolvedContents(DocumentReference collectionReference,
+        DocumentReference versionReference) throws QueryException, XWikiException
+    {
+        if (this.resolvedContentIndex.isEnabled()) {
+            return this.resolvedContentIndex.get(collectionReference, versionReference,
+                () -> resolveContents(collectionReference, versionReference));
+        }
+
+        return resolveContents(collectionReference, versionReference);
+    }
+
+    /**
+     * Resolve the content displayed by each versioned page of a collection for the given version, walking the version
+     * chain once for all the pages.
+     *
+     * @param collectionReference the collection reference
+     * @param versionReference the version reference
+     * @return the content displayed for the version, by page space; the pages without content are not listed
+     * @throws QueryException
+     * @throws XWikiException
+     */
+    private Map<EntityReference, DocumentReference> resolveContents(DocumentReference collectionReference,
+        DocumentReference versionReference) throws QueryException, XWikiException
+    {
+        // Get the names of the versions holding content for each page, from all the versioned contents at once
+        Map<EntityReference, Set<String>> pagesContentVersions = new LinkedHashMap<>();
+        for (DocumentReference contentReference : this.collectionQueries.getDocuments(collectionReference,
+            BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE)) {
+            pagesContentVersions.computeIfAbsent(contentReference.getParent(), k -> new HashSet<>())
+                .add(contentReference.getName());
+        }
+
+        List<String> versionNames = new ArrayList<>();
+        for (DocumentReference inheritedVersionReference : getVersionInheritanceChain(versionReference)) {
+            String versionName = getVersionName(inheritedVersionReference);
+            if (versionName.isEmpty()) {
+                break;
+            }
+            versionNames.add(versionName);
+        }
+
+        logger.debug("[resolveContents] versionNames : [{}]", versionNames);
+
+        Map<EntityReference, DocumentReference> contentReferences = new LinkedHashMap<>();
+        for (Map.Entry<EntityReference, Set<String>> pageContentVersions : pagesContentVersions.entrySet()) {
+            for (String versionName : versionNames) {
+                if (pageContentVersions.getValue().contains(versionName)) {
+                    EntityReference pageSpace = pageContentVersions.getKey();
+                    contentReferences.put(pageSpace,
+                        new DocumentReference(new EntityReference(versionName, EntityType.DOCUMENT, pageSpace)));
+                    break;
+                }
+            }
+        }
+
+        return contentReferences;
     }
 
     private SpaceReference getSpaceReference(EntityReference entityReference)
@@ -0,0 +1,271 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.xwiki.contrib.bookversions.PageContext;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Immutable implementation of {@link PageContext}, created through its {@link Builder}.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class DefaultPageContext implements PageContext
+{
+    private final DocumentReference documentReference;
+
+    private final DocumentReference collectionReference;
+
+    private final boolean book;
+
+    private final boolean library;
+
+    private final boolean page;
+
+    private final boolean versionedPage;
+
+    private final boolean versionedContent;
+
+    private final String selectedVersion;
+
+    private final String selectedVariant;
+
+    private final List<String> versions;
+
+    private final List<String> variants;
+
+    private final DocumentReference contentReference;
+
+    private DefaultPageContext(Builder builder)
+    {
+        this.documentReference = builder.documentReference;
+        this.collectionReference = builder.collectionReference;
+        this.book = builder.book;
+        this.library = builder.library;
+        this.page = builder.page;
+        this.versionedPage = builder.versionedPage;
+        this.versionedContent = builder.versionedContent;
+        this.selectedVersion = builder.selectedVersion;
+        this.selectedVariant = builder.selectedVariant;
+        this.versions = builder.versions;
+        this.variants = builder.variants;
+        this.contentReference = builder.contentReference;
+    }
+
+    @Override
+    public DocumentReference getDocumentReference()
+    {
+        return this.documentReference;
+    }
+
+    @Override
+    public DocumentReference getCollectionReference()
+    {
+        return this.collectionReference;
+    }
+
+    @Override
+    public boolean isBook()
+    {
+        return this.book;
+    }
+
+    @Override
+    public boolean isLibrary()
+    {
+        return this.library;
+    }
+
+    @Override
+    public boolean isPage()
+    {
+        return this.page;
+    }
+
+    @Override
+    public boolean isVersionedPage()
+    {
+        return this.versionedPage;
+    }
+
+    @Override
+    public boolean isVersionedContent()
+    {
+        return this.versionedContent;
+    }
+
+    @Override
+    public String getSelectedVersion()
+    {
+        return this.selectedVersion;
+    }
+
+    @Override
+    public String getSelectedVariant()
+    {
+        return this.selectedVariant;
+    }
+
+    @Override
+    public List<String> getVersions()
+    {
+        return this.versions;
+    }
+
+    @Override
+    public List<String> getVariants()
+    {
+        return this.variants;
+    }
+
+    @Override
+    public DocumentReference getContentReference()
+    {
+        return this.contentReference;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.documentReference + " in " + this.collectionReference + ", version " + this.selectedVersion
+            + ", variant " + this.selectedVariant + ", content " + this.contentReference;
+    }
+
+    /**
+     * Builder of {@link DefaultPageContext}.
+     */
+    public static final class Builder
+    {
+        private final DocumentReference documentReference;
+
+        private DocumentReference collectionReference;
+
+        private boolean book;
+
+        private boolean library;
+
+        private boolean page;
+
+        private boolean versionedPage;
+
+        private boolean versionedContent;
+
+        private String selectedVersion;
+
+        private String selectedVariant;
+
+        private List<String> versions = Collections.emptyList();
+
+        private List<String> variants = Collections.emptyList();
+
+        private DocumentReference contentReference;
+
+        /**
+         * @param documentReference the reference of the document the context is about
+         */
+        public Builder(DocumentReference documentReference)
+        {
+            this.documentReference = documentReference;
+        }
+
+        /**
+         * @param collectionReference the reference of the collection of the document
+         * @return this builder
+         */
+        public Builder collection(DocumentReference collectionReference)
+        {
+            this.collectionReference = collectionReference;
+            return this;
+        }
+
+        /**
+         * @param book true if the document is a book
+         * @param library true if the document is a library
+         * @return this builder
+         */
+        public Builder collectionKind(boolean book, boolean library)
+        {
+            this.book = book;
+            this.library = library;
+            return this;
+        }
+
+        /**
+         * @param page true if the document is a book page
+         * @param versionedPage true if the document is a versioned book page
+         * @param versionedContent true if the document is a versioned content
+         * @return this builder
+         */
+        public Builder pageKind(boolean page, boolean versionedPage, boolean versionedContent)
+        {
+            this.page = page;
+            this.versionedPage = versionedPage;
+            this.versionedContent = versionedContent;
+            return this;
+        }
+
+        /**
+         * @param selectedVersion the serialized reference of the selected version
+         * @param selectedVariant the serialized reference of the selected variant
+         * @return this builder
+         */
+        public Builder selection(String selectedVersion, String selectedVariant)
+        {
+            this.selectedVersion = selectedVersion;
+            this.selectedVariant = selectedVariant;
+            return this;
+        }
+
+        /**
+         * @param versions the versions of the collection
+         * @param variants the variants of the collection
+         * @return this builder
+         */
+        public Builder versionsAndVariants(List<String> versions, List<String> variants)
+        {
+            this.versions = Collections.unmodifiableList(versions);
+            this.variants = Collections.unmodifiableList(variants);
+            return this;
+        }
+
+        /**
+         * @param contentReference the reference of the content to display
+         * @return this builder
+         */
+        public Builder content(DocumentReference contentReference)
+        {
+            this.contentReference = contentReference;
+            return this;
+        }
+
+        /**
+         * @return the page context
+         */
+        public DefaultPageContext build()
+        {
+            return new DefaultPageContext(this);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Delegates to the {@link SelectionStore} configured in the {@code xwiki.properties} file, the session being used by
+ * default. The cookie store lets the selection survive when the requests of a user are not all served by the same
+ * cluster member.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Singleton
+public class DefaultSelectionStore implements SelectionStore, Initializable
+{
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
+    @Inject
+    @Named(SessionSelectionStore.HINT)
+    private Provider<SelectionStore> sessionSelectionStoreProvider;
+
+    @Inject
+    private Logger logger;
+
+    private SelectionStore store;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String hint = this.configuration.getProperty(CONFIGURATION_KEY, SessionSelectionStore.HINT);
+
+        try {
+            this.store = this.componentManagerProvider.get().getInstance(SelectionStore.class, hint);
+        } catch (ComponentLookupException e) {
+            this.logger.warn("Failed to find the selection store [{}], using the session instead. Root cause: [{}]",
+                hint, ExceptionUtils.getRootCauseMessage(e));
+            this.store = this.sessionSelectionStoreProvider.get();
+        }
+    }
+
+    @Override
+    public String get(String selection, DocumentReference collectionReference)
+    {
+        return this.store.get(selection, collectionReference);
+    }
+
+    @Override
+    public void set(String selection, DocumentReference collectionReference, String value)
+    {
+        this.store.set(selection, collectionReference, value);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.bookversions.DocumentClassification;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+/**
+ * Finds the book versions types of many documents at once, from the classes of their objects, instead of loading
+ * each document.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = DocumentClassifier.class)
+@Singleton
+public class DocumentClassifier
+{
+    /**
+     * The maximum number of documents given to a single query, to keep the {@code in} clauses reasonable.
+     */
+    private static final int BATCH_SIZE = 500;
+
+    private static final String NAMES = "names";
+
+    @Inject
+    private Provider<QueryManager> queryManagerProvider;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    /**
+     * Get the book versions types of the given documents.
+     *
+     * @param documentReferences the references of the documents to classify
+     * @return the types of each given document, in the same order
+     * @throws QueryException in case the queries fail
+     */
+    public Map<DocumentReference, DocumentClassification> classify(Collection<DocumentReference> documentReferences)
+        throws QueryException
+    {
+        // The queries are run on the wiki of the documents
+        Map<String, Map<String, Integer>> wikisFlags = new HashMap<>();
+        for (DocumentReference documentReference : documentReferences) {
+            wikisFlags.computeIfAbsent(documentReference.getWikiReference().getName(), k -> new LinkedHashMap<>())
+                .put(this.localSerializer.serialize(documentReference), 0);
+        }
+        for (Map.Entry<String, Map<String, Integer>> wikiFlags : wikisFlags.entrySet()) {
+            List<String> names = new ArrayList<>(wikiFlags.getValue().keySet());
+            for (int i = 0; i < names.size(); i += BATCH_SIZE) {
+                List<String> batch = names.subList(i, Math.min(i + BATCH_SIZE, names.size()));
+                classify(wikiFlags.getKey(), batch, wikiFlags.getValue());
+            }
+        }
+
+        Map<DocumentReference, DocumentClassification> classifications = new LinkedHashMap<>();
+        for (DocumentReference documentReference : documentReferences) {
+            int flags = wikisFlags.get(documentReference.getWikiReference().getName())
+                .get(this.localSerializer.serialize(documentReference));
+            classifications.put(documentReference,
+                flags != 0 ? new DocumentClassification(flags) : DocumentClassification.NONE);
+        }
+
+        return classifications;
+    }
+
+    private void classify(String wiki, List<String> names, Map<String, Integer> flags) throws QueryException
+    {
+        Map<String, Integer> classesFlags = new HashMap<>();
+        classesFlags.put(serialize(BookVersionsConstants.BOOK_CLASS_REFERENCE), DocumentClassification.BOOK);
+        classesFlags.put(serialize(BookVersionsConstants.LIBRARY_CLASS_REFERENCE), DocumentClassification.LIBRARY);
+        // A page is versioned unless it is marked as unversioned, which is checked below
+        classesFlags.put(serialize(BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE),
+            DocumentClassification.PAGE | DocumentClassification.VERSIONED_PAGE);
+        classesFlags.put(serialize(BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE),
+            DocumentClassification.VERSIONED_CONTENT);
+        classesFlags.put(serialize(BookVersionsConstants.VERSION_CLASS_REFERENCE), DocumentClassification.VERSION);
+        classesFlags.put(serialize(BookVersionsConstants.VARIANT_CLASS_REFERENCE), DocumentClassification.VARIANT);
+
+        List<Object[]> results = this.queryManagerProvider.get()
+            .createQuery("select distinct obj.name, obj.className from BaseObject obj "
+                + "where obj.name in (:names) and obj.className in (:classNames)", Query.HQL)
+            .setWiki(wiki).bindValue(NAMES, names).bindValue("classNames", new ArrayList<>(classesFlags.keySet()))
+            .execute();
+        for (Object[] result : results) {
+            flags.merge((String) result[0], classesFlags.get(result[1]), (a, b) -> a | b);
+        }
+
+        List<String> unversionedPages = this.queryManagerProvider.get()
+            .createQuery("select distinct obj.name from BaseObject obj, IntegerProperty prop "
+                + "where obj.name in (:names) and obj.className = :pageClass and obj.id = prop.id.id "
+                + "and prop.id.name = :unversioned and prop.value = 1", Query.HQL)
+            .setWiki(wiki).bindValue(NAMES, names)
+            .bindValue("pageClass", serialize(BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE))
+            .bindValue("unversioned", BookVersionsConstants.BOOKPAGE_PROP_UNVERSIONED).execute();
+        for (String unversionedPage : unversionedPages) {
+            flags.computeIfPresent(unversionedPage, (k, v) -> v & ~DocumentClassification.VERSIONED_PAGE);
+        }
+    }
+
+    private String serialize(EntityReference classReference)
+    {
+        return this.localSerializer.serialize(classReference);
+    }
+}
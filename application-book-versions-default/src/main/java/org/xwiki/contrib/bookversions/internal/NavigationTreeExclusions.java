@@ -0,0 +1,384 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.bookversions.BookVersionsManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.QueryException;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Computes and caches, for each version and variant of a collection (book or library), the pages visible in the
+ * navigation tree of the collection, and the nodes to exclude from that tree. The pages of a collection are given an
+ * ordinal, and the visible pages of a version and variant are kept as a bit set combining the unversioned pages, the
+ * versioned pages having content for the version, and the pages associated to the variant. The variants lists are
+ * read along with the pages of the collection, so that filtering a collection doesn't depend on the other collections
+ * of the wiki. The computed sets of a collection are forgotten when a page or a content of the collection is created,
+ * deleted, or changes its versioning or its variants.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = NavigationTreeExclusions.class)
+@Singleton
+public class NavigationTreeExclusions implements Initializable, Disposable
+{
+    private static final String CACHE_ID = "bookversions.navigationExclusions";
+
+    private static final int CACHE_SIZE = 100;
+
+    private static final String DOCUMENT_NODE_PREFIX = "document:";
+
+    private static final String SEPARATOR = ",";
+
+    private static final String KEY_SEPARATOR = "|";
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @Inject
+    private Provider<BookVersionsManager> bookVersionsManagerProvider;
+
+    @Inject
+    private CollectionQueries collectionQueries;
+
+    @Inject
+    private VariantMacroFilter variantMacroFilter;
+
+    /**
+     * The pages of each collection, and the pages visible for each of its versions and variants.
+     */
+    private Cache<CollectionNavigation> cache;
+
+    /**
+     * Incremented on each invalidation, so that a navigation built from data invalidated meanwhile is not cached.
+     */
+    private long invalidations;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.cache = this.cacheManager.createNewCache(new LRUCacheConfiguration(CACHE_ID, CACHE_SIZE));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the navigation exclusions cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
+    /**
+     * Get the nodes to exclude from the navigation tree of a collection, for the given version and variant: the
+     * documents which are not book pages, and the pages which are not visible for the version and variant.
+     *
+     * @param collectionReference the collection reference
+     * @param version the serialized reference of the selected version, if any
+     * @param variant the serialized reference of the selected variant, if any
+     * @return the comma separated list of the tree nodes to exclude
+     * @throws QueryException in case the documents of the collection can't be retrieved
+     * @throws XWikiException in case the documents of the collection can't be retrieved
+     */
+    public String getExclusions(DocumentReference collectionReference, String version, String variant)
+        throws QueryException, XWikiException
+    {
+        CollectionNavigation navigation = getNavigation(collectionReference);
+        DocumentReference versionReference = resolve(version, collectionReference);
+        DocumentReference variantReference = resolve(variant, collectionReference);
+
+        String key = getKey(versionReference, variantReference);
+        String exclusions = navigation.exclusions.get(key);
+        if (exclusions == null) {
+            BitSet visiblePages = getVisiblePages(navigation, key, versionReference, variantReference);
+
+            Set<String> nodes = new LinkedHashSet<>();
+            for (int i = visiblePages.nextClearBit(0); i < navigation.pages.size();
+                i = visiblePages.nextClearBit(i + 1)) {
+                nodes.add(DOCUMENT_NODE_PREFIX + this.localSerializer.serialize(navigation.pages.get(i)));
+            }
+            nodes.addAll(navigation.nonPageNodes);
+
+            exclusions = StringUtils.join(nodes, SEPARATOR);
+            navigation.exclusions.put(key, exclusions);
+        }
+
+        return exclusions;
+    }
+
+    /**
+     * Get the pages of a collection visible for the given version and variant: the unversioned pages, and the
+     * versioned pages having content for the version, among the pages associated to the variant. A page without
+     * associated variants is part of all the variants.
+     *
+     * @param collectionReference the collection reference
+     * @param versionReference the selected version, or {@code null} to not filter the pages on their content
+     * @param variantReference the selected variant, or {@code null} to not filter the pages on their variants
+     * @return the visible pages, in the order of the collection
+     * @throws QueryException in case the documents of the collection can't be retrieved
+     * @throws XWikiException in case the documents of the collection can't be retrieved
+     */
+    public Set<DocumentReference> getVisiblePages(DocumentReference collectionReference,
+        DocumentReference versionReference, DocumentReference variantReference) throws QueryException, XWikiException
+    {
+        CollectionNavigation navigation = getNavigation(collectionReference);
+        BitSet visiblePages = getVisiblePages(navigation, getKey(versionReference, variantReference), versionReference,
+            variantReference);
+
+        Set<DocumentReference> pages = new LinkedHashSet<>();
+        for (int i = visiblePages.nextSetBit(0); i >= 0; i = visiblePages.nextSetBit(i + 1)) {
+            pages.add(navigation.pages.get(i));
+        }
+
+        return pages;
+    }
+
+    /**
+     * Forget the exclusions computed for the given collection.
+     *
+     * @param collectionReference the collection reference
+     */
+    public synchronized void invalidate(DocumentReference collectionReference)
+    {
+        this.invalidations++;
+        this.cache.remove(this.serializer.serialize(collectionReference));
+    }
+
+    /**
+     * Forget all the computed exclusions.
+     */
+    public synchronized void invalidateAll()
+    {
+        this.invalidations++;
+        this.cache.removeAll();
+    }
+
+    private DocumentReference resolve(String reference, DocumentReference collectionReference)
+    {
+        return StringUtils.isNotBlank(reference) ? this.referenceResolver.resolve(reference, collectionReference)
+            : null;
+    }
+
+    private String getKey(DocumentReference versionReference, DocumentReference variantReference)
+    {
+        return (versionReference != null ? this.localSerializer.serialize(versionReference) : "") + KEY_SEPARATOR
+            + (variantReference != null ? this.localSerializer.serialize(variantReference) : "");
+    }
+
+    private CollectionNavigation getNavigation(DocumentReference collectionReference)
+        throws QueryException, XWikiException
+    {
+        String collectionKey = this.serializer.serialize(collectionReference);
+        CollectionNavigation navigation = this.cache.get(collectionKey);
+        if (navigation == null) {
+            long buildInvalidations;
+            synchronized (this) {
+                buildInvalidations = this.invalidations;
+            }
+
+            // Build outside of the lock, and only cache the result if nothing was invalidated in the meantime
+            navigation = buildNavigation(collectionReference);
+            synchronized (this) {
+                if (buildInvalidations == this.invalidations) {
+                    this.cache.set(collectionKey, navigation);
+                }
+            }
+        }
+
+        return navigation;
+    }
+
+    private CollectionNavigation buildNavigation(DocumentReference collectionReference) throws QueryException
+    {
+        List<DocumentReference> pages = this.collectionQueries.getDocuments(collectionReference,
+            BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE);
+        CollectionNavigation navigation = new CollectionNavigation(pages);
+
+        Map<DocumentReference, Integer> pageOrdinals = new HashMap<>(pages.size());
+        Map<EntityReference, Integer> pageSpaceOrdinals = new HashMap<>(pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            pageOrdinals.put(pages.get(i), i);
+            pageSpaceOrdinals.put(pages.get(i).getParent(), i);
+        }
+        for (DocumentReference pageReference : this.collectionQueries.getUnversionedPages(collectionReference)) {
+            Integer ordinal = pageOrdinals.get(pageReference);
+            if (ordinal != null) {
+                navigation.unversionedPages.set(ordinal);
+            }
+        }
+        for (DocumentReference contentReference : this.collectionQueries.getDocuments(collectionReference,
+            BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE)) {
+            Integer ordinal = pageSpaceOrdinals.get(contentReference.getParent());
+            if (ordinal != null) {
+                navigation.pagesWithContent.computeIfAbsent(contentReference.getName(), k -> new BitSet()).set(ordinal);
+            }
+        }
+
+        // The variants lists of the pages and of their contents, read from their properties at once
+        for (Map.Entry<DocumentReference, List<String>> variantsList : this.collectionQueries
+            .getVariantsLists(collectionReference).entrySet()) {
+            Set<String> variants = new HashSet<>();
+            for (String variant : variantsList.getValue()) {
+                String variantReference = this.variantMacroFilter.getVariant(variant, variantsList.getKey());
+                if (variantReference != null) {
+                    variants.add(variantReference);
+                }
+            }
+            if (!variants.isEmpty()) {
+                navigation.variantsLists.put(variantsList.getKey(), variants);
+            }
+        }
+
+        // Exclude all the documents which are not book pages
+        for (DocumentReference documentReference : this.collectionQueries.getNonPageDocuments(collectionReference)) {
+            navigation.nonPageNodes.add(DOCUMENT_NODE_PREFIX + this.localSerializer.serialize(documentReference));
+        }
+
+        return navigation;
+    }
+
+    private BitSet getVisiblePages(CollectionNavigation navigation, String key, DocumentReference versionReference,
+        DocumentReference variantReference)
+    {
+        BitSet visiblePages = navigation.visiblePages.get(key);
+        if (visiblePages == null) {
+            visiblePages = computeVisiblePages(navigation, versionReference, variantReference);
+            navigation.visiblePages.put(key, visiblePages);
+        }
+
+        return visiblePages;
+    }
+
+    private BitSet computeVisiblePages(CollectionNavigation navigation, DocumentReference versionReference,
+        DocumentReference variantReference)
+    {
+        BitSet visiblePages = new BitSet(navigation.pages.size());
+        String versionName = null;
+
+        if (versionReference != null) {
+            // Keep the unversioned pages and the versioned pages with content for the selected version
+            versionName = this.bookVersionsManagerProvider.get().getVersionName(versionReference);
+            visiblePages.or(navigation.unversionedPages);
+            visiblePages.or(navigation.pagesWithContent.getOrDefault(versionName, new BitSet()));
+        } else {
+            visiblePages.set(0, navigation.pages.size());
+        }
+
+        if (variantReference != null) {
+            // Keep the pages associated to the selected variant, or to none. The variants of a versioned page are the
+            // ones of its content for the selected version.
+            String variant = this.localSerializer.serialize(variantReference);
+            for (int i = visiblePages.nextSetBit(0); i >= 0; i = visiblePages.nextSetBit(i + 1)) {
+                DocumentReference pageReference = navigation.pages.get(i);
+                DocumentReference variantsHolderReference =
+                    versionName != null && !navigation.unversionedPages.get(i)
+                        ? new DocumentReference(versionName, pageReference.getLastSpaceReference()) : pageReference;
+                Set<String> pageVariants =
+                    navigation.variantsLists.getOrDefault(variantsHolderReference, Collections.emptySet());
+                if (!pageVariants.isEmpty() && !pageVariants.contains(variant)) {
+                    visiblePages.clear(i);
+                }
+            }
+        }
+
+        return visiblePages;
+    }
+
+    /**
+     * The pages of a collection, by ordinal, and the visible pages and exclusions computed for its versions and
+     * variants. The bit sets are never modified once computed.
+     */
+    private static final class CollectionNavigation
+    {
+        private final List<DocumentReference> pages;
+
+        private final BitSet unversionedPages = new BitSet();
+
+        /**
+         * The pages having content, by version name.
+         */
+        private final Map<String, BitSet> pagesWithContent = new HashMap<>();
+
+        private final Set<String> nonPageNodes = new LinkedHashSet<>();
+
+        /**
+         * The variants listed by the pages and contents of the collection, for those listing at least one variant.
+         */
+        private final Map<DocumentReference, Set<String>> variantsLists = new HashMap<>();
+
+        /**
+         * The visible pages, by version and variant.
+         */
+        private final Map<String, BitSet> visiblePages = new ConcurrentHashMap<>();
+
+        /**
+         * The exclusions, by version and variant.
+         */
+        private final Map<String, String> exclusions = new ConcurrentHashMap<>();
+
+        CollectionNavigation(List<DocumentReference> pages)
+        {
+            this.pages = Collections.unmodifiableList(pages);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.query.QueryException;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Remembers, for the duration of a request, the results of the read-only lookups of the book versions manager, so
+ * that the navigation menu, the administration menu, the navigation panel and the macros rendered for the same page
+ * don't repeat them. The results are stored in the XWiki context, so they are forgotten with the request and never
+ * need to be invalidated across requests; they are dropped within the request when the selection changes or when a
+ * document is saved or deleted. Nothing is remembered outside of a request (e.g. in a background thread), and the
+ * jobs forget the results between their steps; a request remembering too many results forgets them all, so that a
+ * long running request doesn't keep growing its memo.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = RequestMemo.class)
+@Singleton
+public class RequestMemo
+{
+    private static final String CONTEXT_KEY = "bookversions.requestMemo";
+
+    private static final int MAX_RESULTS = 10000;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    /**
+     * Get the result of a lookup, computing it only the first time it is requested during the current request.
+     *
+     * @param <T> the type of the result
+     * @param loader computes the result when it's not already known
+     * @param method the name of the lookup
+     * @param arguments the arguments of the lookup
+     * @return the result of the lookup
+     * @throws QueryException in case the result can't be computed
+     * @throws XWikiException in case the result can't be computed
+     */
+    public <T> T get(Loader<T> loader, String method, Object... arguments) throws QueryException, XWikiException
+    {
+        Memo memo = getMemo();
+        if (memo == null) {
+            return loader.load();
+        }
+
+        List<Object> key = getKey(method, arguments);
+        if (memo.contains(key)) {
+            return memo.get(key);
+        }
+
+        T result = loader.load();
+        memo.put(key, result);
+
+        return result;
+    }
+
+    /**
+     * Get the result of a check, computing it only the first time it is requested during the current request.
+     *
+     * @param check computes the result when it's not already known
+     * @param method the name of the check
+     * @param arguments the arguments of the check
+     * @return the result of the check
+     * @throws XWikiException in case the result can't be computed
+     */
+    public boolean check(Check check, String method, Object... arguments) throws XWikiException
+    {
+        Memo memo = getMemo();
+        if (memo == null) {
+            return check.check();
+        }
+
+        List<Object> key = getKey(method, arguments);
+        if (memo.contains(key)) {
+            return memo.<Boolean>get(key);
+        }
+
+        boolean result = check.check();
+        memo.put(key, result);
+
+        return result;
+    }
+
+    /**
+     * Remember the result of a lookup computed by other means, e.g. in bulk.
+     *
+     * @param result the result of the lookup
+     * @param method the name of the lookup
+     * @param arguments the arguments of the lookup
+     */
+    public void remember(Object result, String method, Object... arguments)
+    {
+        Memo memo = getMemo();
+        if (memo != null) {
+            memo.put(getKey(method, arguments), result);
+        }
+    }
+
+    /**
+     * Forget the results remembered during the current request. The hit and miss counters are kept.
+     */
+    public void clear()
+    {
+        Memo memo = getMemo();
+        if (memo != null) {
+            memo.clear();
+        }
+    }
+
+    /**
+     * @return the number of lookups answered from the remembered results during the current request, and the number
+     *         of lookups which had to be computed
+     */
+    public Map<String, Long> getStatistics()
+    {
+        Memo memo = getMemo();
+        Map<String, Long> statistics = new HashMap<>();
+        statistics.put("hits", memo != null ? memo.hits : 0L);
+        statistics.put("misses", memo != null ? memo.misses : 0L);
+
+        return statistics;
+    }
+
+    private Memo getMemo()
+    {
+        XWikiContext xcontext = this.contextProvider.get();
+        if (xcontext == null || xcontext.getRequest() == null) {
+            return null;
+        }
+
+        Memo memo = (Memo) xcontext.get(CONTEXT_KEY);
+        if (memo == null) {
+            memo = new Memo();
+            xcontext.put(CONTEXT_KEY, memo);
+        }
+
+        return memo;
+    }
+
+    private List<Object> getKey(String method, Object... arguments)
+    {
+        List<Object> key = new ArrayList<>(arguments.length + 1);
+        key.add(method);
+        Collections.addAll(key, arguments);
+
+        return key;
+    }
+
+    /**
+     * The results remembered during a request, along with the hit and miss counters. A request is handled by a single
+     * thread, so no synchronization is needed.
+     */
+    private static final class Memo
+    {
+        private final Map<List<Object>, Object> results = new HashMap<>();
+
+        private long hits;
+
+        private long misses;
+
+        boolean contains(List<Object> key)
+        {
+            if (this.results.containsKey(key)) {
+                this.hits++;
+                return true;
+            }
+
+            this.misses++;
+            return false;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> T get(List<Object> key)
+        {
+            return (T) this.results.get(key);
+        }
+
+        void put(List<Object> key, Object result)
+        {
+            if (this.results.size() >= MAX_RESULTS) {
+                this.results.clear();
+            }
+            this.results.put(key, result);
+        }
+
+        void clear()
+        {
+            this.results.clear();
+        }
+    }
+
+    /**
+     * Computes the result of a lookup.
+     *
+     * @param <T> the type of the result
+     */
+    @FunctionalInterface
+    public interface Loader<T>
+    {
+        /**
+         * @return the result of the lookup
+         * @throws QueryException if the result can't be computed
+         * @throws XWikiException if the result can't be computed
+         */
+        T load() throws QueryException, XWikiException;
+    }
+
+    /**
+     * Computes the result of a check.
+     */
+    @FunctionalInterface
+    public interface Check
+    {
+        /**
+         * @return the result of the check
+         * @throws XWikiException if the result can't be computed
+         */
+        boolean check() throws XWikiException;
+    }
+}
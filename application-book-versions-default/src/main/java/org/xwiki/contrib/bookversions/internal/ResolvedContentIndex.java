@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.QueryException;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Holds, for each version of a collection (book or library), the content effectively displayed by each versioned page
+ * of the collection once the version inheritance is resolved. When enabled, resolving the inherited content of a page
+ * is a single lookup: the version chain is walked once per version, for all the pages at once, and not again until the
+ * contents or the versions of the collection change.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = ResolvedContentIndex.class)
+@Singleton
+public class ResolvedContentIndex implements Initializable, Disposable
+{
+    /**
+     * The configuration key enabling the resolved contents.
+     */
+    private static final String ENABLED_KEY = "bookversions.resolvedContents.enabled";
+
+    private static final String CACHE_ID = "bookversions.resolvedContents";
+
+    private static final int CACHE_SIZE = 100;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /**
+     * The resolved contents of each version, for each collection.
+     */
+    private Cache<Map<String, Map<EntityReference, DocumentReference>>> cache;
+
+    private boolean enabled;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.enabled = this.configuration.getProperty(ENABLED_KEY, false);
+
+        try {
+            this.cache = this.cacheManager.createNewCache(new LRUCacheConfiguration(CACHE_ID, CACHE_SIZE));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the resolved contents cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
+    /**
+     * @return true if the inherited contents should be read from this index
+     */
+    public boolean isEnabled()
+    {
+        return this.enabled;
+    }
+
+    /**
+     * Get the content displayed by each versioned page of a collection for the given version, resolving them if they
+     * are not already known.
+     *
+     * @param collectionReference the collection reference
+     * @param versionReference the version reference
+     * @param resolver the resolver to use if the contents of the version are not already known
+     * @return the content displayed for the version, by page space; the pages without content are not listed
+     * @throws QueryException if the contents can't be resolved
+     * @throws XWikiException if the contents can't be resolved
+     */
+    public Map<EntityReference, DocumentReference> get(DocumentReference collectionReference,
+        DocumentReference versionReference, ResolvedContentResolver resolver) throws QueryException, XWikiException
+    {
+        String collectionKey = this.serializer.serialize(collectionReference);
+        Map<String, Map<EntityReference, DocumentReference>> collectionContents = this.cache.get(collectionKey);
+        if (collectionContents == null) {
+            collectionContents = new ConcurrentHashMap<>();
+            this.cache.set(collectionKey, collectionContents);
+        }
+
+        String versionKey = this.serializer.serialize(versionReference);
+        Map<EntityReference, DocumentReference> contents = collectionContents.get(versionKey);
+        if (contents == null) {
+            contents = Collections.unmodifiableMap(resolver.resolve());
+            collectionContents.put(versionKey, contents);
+        }
+
+        return contents;
+    }
+
+    /**
+     * Forget the contents resolved for the given collection.
+     *
+     * @param collectionReference the collection reference
+     */
+    public void invalidate(DocumentReference collectionReference)
+    {
+        this.cache.remove(this.serializer.serialize(collectionReference));
+    }
+
+    /**
+     * Forget all the resolved contents.
+     */
+    public void invalidateAll()
+    {
+        this.cache.removeAll();
+    }
+
+    /**
+     * Resolves the contents of a version from the storage.
+     */
+    @FunctionalInterface
+    public interface ResolvedContentResolver
+    {
+        /**
+         * @return the content displayed for the version, by page space
+         * @throws QueryException if the contents can't be queried
+         * @throws XWikiException if the versions can't be loaded
+         */
+        Map<EntityReference, DocumentReference> resolve() throws QueryException, XWikiException;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Stores the version and the variant selected by the current user, for each collection (book or library). The default
+ * implementation delegates to the store configured with the {@value #CONFIGURATION_KEY} key of the
+ * {@code xwiki.properties} file.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Role
+public interface SelectionStore
+{
+    /**
+     * The configuration key holding the hint of the store to use.
+     */
+    String CONFIGURATION_KEY = "bookversions.selectionStore";
+
+    /**
+     * The selection of a version.
+     */
+    String VERSION = BookVersionsConstants.SESSION_SELECTEDVERSION;
+
+    /**
+     * The selection of a variant.
+     */
+    String VARIANT = BookVersionsConstants.SESSION_SELECTEDVARIANT;
+
+    /**
+     * Get the value selected for a collection.
+     *
+     * @param selection the kind of selection, {@link #VERSION} or {@link #VARIANT}
+     * @param collectionReference the collection reference
+     * @return the selected value, or {@code null} if nothing is selected
+     */
+    String get(String selection, DocumentReference collectionReference);
+
+    /**
+     * Set the value selected for a collection.
+     *
+     * @param selection the kind of selection, {@link #VERSION} or {@link #VARIANT}
+     * @param collectionReference the collection reference
+     * @param value the selected value
+     */
+    void set(String selection, DocumentReference collectionReference, String value);
+}
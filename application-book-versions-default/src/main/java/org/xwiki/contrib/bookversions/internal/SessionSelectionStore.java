@@ -0,0 +1,111 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpSession;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiRequest;
+
+/**
+ * Stores the selection in the HTTP session, as a concurrent map keyed by the collection reference, since concurrent
+ * requests of a user share the same session.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Named(SessionSelectionStore.HINT)
+@Singleton
+public class SessionSelectionStore implements SelectionStore
+{
+    /**
+     * The hint of this store.
+     */
+    public static final String HINT = "session";
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Override
+    public String get(String selection, DocumentReference collectionReference)
+    {
+        Map<DocumentReference, String> selections = getSelections(selection, false);
+
+        return selections != null ? selections.get(collectionReference) : null;
+    }
+
+    @Override
+    public void set(String selection, DocumentReference collectionReference, String value)
+    {
+        Map<DocumentReference, String> selections = getSelections(selection, true);
+
+        if (selections != null) {
+            if (value != null) {
+                selections.put(collectionReference, value);
+            } else {
+                selections.remove(collectionReference);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<DocumentReference, String> getSelections(String selection, boolean create)
+    {
+        XWikiRequest request = this.contextProvider.get().getRequest();
+        // Don't create a session only to find out that nothing is selected.
+        HttpSession session = request != null ? request.getSession(create) : null;
+
+        if (session == null) {
+            return null;
+        }
+
+        Object attribute = session.getAttribute(selection);
+        if (attribute instanceof ConcurrentHashMap) {
+            return (Map<DocumentReference, String>) attribute;
+        }
+
+        if (!create) {
+            return null;
+        }
+
+        synchronized (session) {
+            attribute = session.getAttribute(selection);
+            // Replace the maps stored by previous versions of the application, keyed by the serialized reference.
+            if (!(attribute instanceof ConcurrentHashMap)) {
+                attribute = new ConcurrentHashMap<DocumentReference, String>();
+                session.setAttribute(selection, attribute);
+            }
+
+            return (Map<DocumentReference, String>) attribute;
+        }
+    }
+}
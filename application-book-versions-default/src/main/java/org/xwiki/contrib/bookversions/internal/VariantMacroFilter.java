@@ -0,0 +1,239 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.io.StringReader;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.ClassBlockMatcher;
+import org.xwiki.rendering.parser.ParseException;
+import org.xwiki.rendering.parser.Parser;
+import org.xwiki.rendering.renderer.BlockRenderer;
+import org.xwiki.rendering.renderer.printer.DefaultWikiPrinter;
+import org.xwiki.rendering.renderer.printer.WikiPrinter;
+import org.xwiki.rendering.syntax.Syntax;
+
+/**
+ * Applies the {@code variant} macros of a content for a given variant, directly in its XDOM: the macros of other
+ * variants are removed, and the macros of the given variant are replaced by their content, so that the content no
+ * longer depends on the variant selected when it is displayed. The variant macros nested in the content of other
+ * macros, such as a box, are applied too: that content is parsed and rendered back in the syntax of the document.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = VariantMacroFilter.class)
+@Singleton
+public class VariantMacroFilter
+{
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
+    @Inject
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    /**
+     * Apply the variant macros of a content.
+     *
+     * @param xdom the content, modified in place
+     * @param syntax the syntax of the content
+     * @param documentReference the reference of the document holding the content, against which the variants are
+     *     resolved
+     * @param variant the local serialized reference of the variant to keep, or {@code null} to remove all the variant
+     *     macros
+     * @return true if the content held variant macros
+     * @throws ParseException if the content of a kept variant macro, or of a macro holding variant macros, can't be
+     *     parsed or rendered back
+     */
+    public boolean filter(XDOM xdom, Syntax syntax, DocumentReference documentReference, String variant)
+        throws ParseException
+    {
+        boolean filtered = false;
+
+        // The macros nested in a variant macro are part of its content, which is filtered when it's kept
+        for (MacroBlock macro : getMacros(xdom)) {
+            if (BookVersionsConstants.VARIANT_MACRO_ID.equals(macro.getId())) {
+                if (variant != null && variant.equals(getVariant(macro, documentReference))) {
+                    macro.getParent().replaceChild(parseContent(macro, syntax, documentReference, variant), macro);
+                } else {
+                    macro.getParent().removeBlock(macro);
+                }
+                filtered = true;
+            } else if (mayHoldVariantMacros(macro)) {
+                filtered |= filterContent(macro, syntax, documentReference, variant);
+            }
+        }
+
+        return filtered;
+    }
+
+    /**
+     * Get the variants used by the {@code variant} macros of a content, including the macros nested in the content of
+     * other macros.
+     *
+     * @param xdom the content
+     * @param syntax the syntax of the content
+     * @param documentReference the reference of the document holding the content, against which the variants are
+     *     resolved
+     * @return the local serialized references of the variants used by the content
+     * @throws ParseException if the content of a variant macro can't be parsed
+     */
+    public Set<String> getVariants(XDOM xdom, Syntax syntax, DocumentReference documentReference)
+        throws ParseException
+    {
+        Set<String> variants = new LinkedHashSet<>();
+        collectVariants(xdom, syntax, documentReference, variants);
+
+        return variants;
+    }
+
+    private void collectVariants(XDOM xdom, Syntax syntax, DocumentReference documentReference, Set<String> variants)
+        throws ParseException
+    {
+        for (MacroBlock macro : getMacros(xdom)) {
+            if (BookVersionsConstants.VARIANT_MACRO_ID.equals(macro.getId())) {
+                String variant = getVariant(macro, documentReference);
+                if (variant != null) {
+                    variants.add(variant);
+                }
+            }
+            // Only parse the content when it may hold nested variant macros
+            if (mayHoldVariantMacros(macro)) {
+                collectVariants(parse(macro.getContent(), syntax), syntax, documentReference, variants);
+            }
+        }
+    }
+
+    private List<MacroBlock> getMacros(XDOM xdom)
+    {
+        return xdom.getBlocks(new ClassBlockMatcher(MacroBlock.class), Block.Axes.DESCENDANT);
+    }
+
+    private boolean mayHoldVariantMacros(MacroBlock macro)
+    {
+        return StringUtils.contains(macro.getContent(), BookVersionsConstants.VARIANT_MACRO_MARKER);
+    }
+
+    /**
+     * @param macro a variant macro
+     * @param documentReference the reference of the document holding the macro
+     * @return the local serialized reference of the variant of the macro, or {@code null} if it's not set
+     */
+    public String getVariant(MacroBlock macro, DocumentReference documentReference)
+    {
+        // The parameters of the macros are case insensitive
+        for (Map.Entry<String, String> parameter : macro.getParameters().entrySet()) {
+            if (BookVersionsConstants.VARIANT_MACRO_PARAM_VARIANTPAGE.equalsIgnoreCase(parameter.getKey())) {
+                return getVariant(parameter.getValue(), documentReference);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param variantPage the value of the variant parameter of a variant macro
+     * @param documentReference the reference of the document holding the macro
+     * @return the local serialized reference of the variant, or {@code null} if the parameter is not set
+     */
+    public String getVariant(String variantPage, DocumentReference documentReference)
+    {
+        if (StringUtils.isBlank(variantPage)) {
+            return null;
+        }
+
+        return this.localSerializer.serialize(this.referenceResolver.resolve(variantPage, documentReference));
+    }
+
+    private List<Block> parseContent(MacroBlock macro, Syntax syntax, DocumentReference documentReference,
+        String variant) throws ParseException
+    {
+        XDOM content = parse(StringUtils.defaultString(macro.getContent()), syntax);
+        filter(content, syntax, documentReference, variant);
+
+        List<Block> blocks = content.getChildren();
+        // An inline macro can't hold a paragraph
+        if (macro.isInline() && blocks.size() == 1 && blocks.get(0) instanceof ParagraphBlock) {
+            blocks = blocks.get(0).getChildren();
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Apply the variant macros nested in the content of another macro, which is replaced by a copy holding the
+     * filtered content.
+     */
+    private boolean filterContent(MacroBlock macro, Syntax syntax, DocumentReference documentReference,
+        String variant) throws ParseException
+    {
+        XDOM content = parse(macro.getContent(), syntax);
+        if (!filter(content, syntax, documentReference, variant)) {
+            return false;
+        }
+
+        WikiPrinter printer = new DefaultWikiPrinter();
+        getComponent(BlockRenderer.class, syntax, "renderer").render(content, printer);
+        macro.getParent().replaceChild(
+            new MacroBlock(macro.getId(), macro.getParameters(), printer.toString(), macro.isInline()), macro);
+
+        return true;
+    }
+
+    private XDOM parse(String content, Syntax syntax) throws ParseException
+    {
+        return getComponent(Parser.class, syntax, "parser").parse(new StringReader(content));
+    }
+
+    private <T> T getComponent(Class<T> role, Syntax syntax, String name) throws ParseException
+    {
+        try {
+            return this.componentManagerProvider.get().getInstance(role, syntax.toIdString());
+        } catch (ComponentLookupException e) {
+            throw new ParseException(String.format("Failed to find a %s for syntax [%s]", name, syntax), e);
+        }
+    }
+}
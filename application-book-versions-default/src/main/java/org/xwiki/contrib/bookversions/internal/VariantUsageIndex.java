@@ -0,0 +1,447 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.LocaleUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.rendering.parser.ParseException;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Records, for each wiki, which pages are associated to each variant through their variants list, and which pages use
+ * each variant through the {@code variant} macro. Each index of a wiki is built the first time it is needed, and then
+ * updated when a document is saved or deleted, so that listing the pages of a variant doesn't scan the content of all
+ * the documents. The variants lists are indexed separately, since they are read from their properties without any
+ * content scan. The indexes are built without holding any lock, so that the saves of the wiki are never blocked by a
+ * build: the documents saved meanwhile are applied to the built index before it's published.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = VariantUsageIndex.class)
+@Singleton
+public class VariantUsageIndex implements Initializable, Disposable
+{
+    private static final String LINKED_PAGES_CACHE_ID = "bookversions.variantLinkedPages";
+
+    private static final String MACRO_PAGES_CACHE_ID = "bookversions.variantMacroPages";
+
+    private static final int CACHE_SIZE = 100;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private Provider<QueryManager> queryManagerProvider;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private CollectionQueries collectionQueries;
+
+    @Inject
+    private VariantMacroFilter variantMacroFilter;
+
+    @Inject
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The pages listing each variant, for each wiki.
+     */
+    private UsagesCache linkedPages;
+
+    /**
+     * The pages calling the macro for each variant, for each wiki.
+     */
+    private UsagesCache macroPages;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.linkedPages = new UsagesCache(
+                this.cacheManager.createNewCache(new LRUCacheConfiguration(LINKED_PAGES_CACHE_ID, CACHE_SIZE)),
+                this::buildLinkedPages, this::updateLinkedPages);
+            this.macroPages = new UsagesCache(
+                this.cacheManager.createNewCache(new LRUCacheConfiguration(MACRO_PAGES_CACHE_ID, CACHE_SIZE)),
+                this::buildMacroPages, this::updateMacroPages);
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the variant usages caches.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.linkedPages.cache.dispose();
+        this.macroPages.cache.dispose();
+    }
+
+    /**
+     * Get the pages associated to a variant through their variants list.
+     *
+     * @param variantReference the variant reference
+     * @return the references of the pages associated to the variant, sorted
+     * @throws QueryException if the index of the wiki can't be built
+     * @throws XWikiException if the index of the wiki can't be built
+     */
+    public List<DocumentReference> getLinkedPages(DocumentReference variantReference)
+        throws QueryException, XWikiException
+    {
+        return this.linkedPages.get(variantReference.getWikiReference().getName())
+            .getPages(this.localSerializer.serialize(variantReference));
+    }
+
+    /**
+     * Get the pages using a variant through the {@code variant} macro, in any of their translations.
+     *
+     * @param variantReference the variant reference
+     * @return the references of the pages using the variant, sorted
+     * @throws QueryException if the index of the wiki can't be built
+     * @throws XWikiException if the index of the wiki can't be built
+     */
+    public List<DocumentReference> getMacroPages(DocumentReference variantReference)
+        throws QueryException, XWikiException
+    {
+        return this.macroPages.get(variantReference.getWikiReference().getName())
+            .getPages(this.localSerializer.serialize(variantReference));
+    }
+
+    /**
+     * Update the usages of a saved or deleted document, in the indexes of its wiki which are known or being built.
+     *
+     * @param document the saved document, or the deleted document without content and objects
+     */
+    public void update(XWikiDocument document)
+    {
+        this.linkedPages.update(document);
+        this.macroPages.update(document);
+    }
+
+    /**
+     * Forget the indexes of all the wikis.
+     */
+    public void removeAll()
+    {
+        this.linkedPages.cache.removeAll();
+        this.macroPages.cache.removeAll();
+    }
+
+    private Usages buildLinkedPages(String wiki) throws QueryException
+    {
+        Usages usages = new Usages();
+
+        // The lists are read from their properties, without loading the documents
+        for (Map.Entry<DocumentReference, List<String>> variantsList : this.collectionQueries
+            .getVariantsLists(new WikiReference(wiki)).entrySet()) {
+            usages.setVariants(variantsList.getKey(), normalize(variantsList.getValue(), variantsList.getKey()));
+        }
+
+        return usages;
+    }
+
+    private Usages buildMacroPages(String wiki) throws QueryException, XWikiException
+    {
+        XWikiContext xcontext = this.contextProvider.get();
+        WikiReference wikiReference = new WikiReference(wiki);
+        Usages usages = new Usages();
+
+        // The only scan of the contents, done once for the wiki
+        List<Object[]> results = this.queryManagerProvider.get()
+            .createQuery("select doc.fullName, doc.language from XWikiDocument doc where doc.content like :marker",
+                Query.HQL)
+            .setWiki(wiki).bindValue("marker", "%" + BookVersionsConstants.VARIANT_MACRO_MARKER + "%").execute();
+        for (Object[] result : results) {
+            Locale locale = LocaleUtils.toLocale(StringUtils.defaultString((String) result[1]));
+            XWikiDocument document = xcontext.getWiki().getDocument(
+                new DocumentReference(this.referenceResolver.resolve((String) result[0], wikiReference), locale),
+                xcontext);
+            updateMacroPages(usages, document);
+        }
+
+        return usages;
+    }
+
+    private void updateLinkedPages(Usages usages, XWikiDocument document)
+    {
+        // The objects are shared by all the translations of a document
+        if (Locale.ROOT.equals(document.getLocale())) {
+            BaseObject variantsObject = document.getXObject(BookVersionsConstants.VARIANTSLIST_CLASS_REFERENCE);
+            List<String> variants = new ArrayList<>();
+            if (variantsObject != null) {
+                for (Object variant : variantsObject.getListValue(BookVersionsConstants.VARIANTSLIST_PROP_VARIANTS)) {
+                    variants.add((String) variant);
+                }
+            }
+            usages.setVariants(document.getDocumentReference(), normalize(variants, document.getDocumentReference()));
+        }
+    }
+
+    private void updateMacroPages(Usages usages, XWikiDocument document)
+    {
+        usages.setVariants(document.getDocumentReferenceWithLocale(), getMacroVariants(document));
+    }
+
+    private Set<String> normalize(List<String> variants, DocumentReference documentReference)
+    {
+        Set<String> normalizedVariants = new HashSet<>();
+        for (String variant : variants) {
+            String variantReference = this.variantMacroFilter.getVariant(variant, documentReference);
+            if (variantReference != null) {
+                normalizedVariants.add(variantReference);
+            }
+        }
+
+        return normalizedVariants;
+    }
+
+    private Set<String> getMacroVariants(XWikiDocument document)
+    {
+        // Only parse the documents which may call the macro
+        if (!StringUtils.contains(document.getContent(), BookVersionsConstants.VARIANT_MACRO_MARKER)) {
+            return Collections.emptySet();
+        }
+
+        try {
+            return this.variantMacroFilter.getVariants(document.getXDOM(), document.getSyntax(),
+                document.getDocumentReference());
+        } catch (ParseException e) {
+            this.logger.warn("Failed to get the variants used by [{}]. Root cause: [{}]",
+                document.getDocumentReferenceWithLocale(), ExceptionUtils.getRootCauseMessage(e));
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * The usages of each wiki, with the builds in progress.
+     */
+    private static final class UsagesCache
+    {
+        private final Cache<Usages> cache;
+
+        private final UsagesBuilder builder;
+
+        private final BiConsumer<Usages, XWikiDocument> updater;
+
+        private final Map<String, Build> builds = new ConcurrentHashMap<>();
+
+        UsagesCache(Cache<Usages> cache, UsagesBuilder builder, BiConsumer<Usages, XWikiDocument> updater)
+        {
+            this.cache = cache;
+            this.builder = builder;
+            this.updater = updater;
+        }
+
+        Usages get(String wiki) throws QueryException, XWikiException
+        {
+            Usages usages = this.cache.get(wiki);
+            if (usages != null) {
+                return usages;
+            }
+
+            // A single build per wiki: the other readers wait for it, the writers are never blocked
+            Build build = new Build();
+            Build currentBuild = this.builds.putIfAbsent(wiki, build);
+            if (currentBuild != null) {
+                return currentBuild.await();
+            }
+
+            try {
+                usages = this.builder.build(wiki);
+                build.publish(wiki, usages);
+                return usages;
+            } catch (QueryException | XWikiException | RuntimeException e) {
+                build.fail(e);
+                throw e;
+            } finally {
+                this.builds.remove(wiki, build);
+            }
+        }
+
+        void update(XWikiDocument document)
+        {
+            String wiki = document.getDocumentReference().getWikiReference().getName();
+
+            // The documents saved during a build are applied once it's done, the other ones right away
+            Build build = this.builds.get(wiki);
+            if (build == null || !build.record(document)) {
+                Usages usages = this.cache.get(wiki);
+                if (usages != null) {
+                    this.updater.accept(usages, document);
+                }
+            }
+        }
+
+        /**
+         * A build in progress.
+         */
+        private final class Build
+        {
+            private final CompletableFuture<Usages> result = new CompletableFuture<>();
+
+            private final List<XWikiDocument> savedDocuments = new ArrayList<>();
+
+            private boolean done;
+
+            synchronized boolean record(XWikiDocument document)
+            {
+                if (!this.done) {
+                    this.savedDocuments.add(document);
+                }
+
+                return !this.done;
+            }
+
+            void publish(String wiki, Usages usages)
+            {
+                synchronized (this) {
+                    for (XWikiDocument document : this.savedDocuments) {
+                        UsagesCache.this.updater.accept(usages, document);
+                    }
+                    UsagesCache.this.cache.set(wiki, usages);
+                    this.done = true;
+                }
+                this.result.complete(usages);
+            }
+
+            void fail(Exception e)
+            {
+                synchronized (this) {
+                    this.done = true;
+                }
+                this.result.completeExceptionally(e);
+            }
+
+            Usages await() throws QueryException, XWikiException
+            {
+                try {
+                    return this.result.join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof QueryException) {
+                        throw (QueryException) e.getCause();
+                    } else if (e.getCause() instanceof XWikiException) {
+                        throw (XWikiException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * The pages using each variant, and the variants used by each page.
+     */
+    private static final class Usages
+    {
+        private final Map<String, Set<DocumentReference>> pagesByVariant = new HashMap<>();
+
+        private final Map<DocumentReference, Set<String>> variantsByPage = new HashMap<>();
+
+        synchronized List<DocumentReference> getPages(String variant)
+        {
+            Set<DocumentReference> pages = new TreeSet<>();
+            for (DocumentReference page : this.pagesByVariant.getOrDefault(variant, Collections.emptySet())) {
+                // The translations of a page are listed once, as the page itself
+                pages.add(page.getLocale() != null ? new DocumentReference(page, (Locale) null) : page);
+            }
+
+            return new ArrayList<>(pages);
+        }
+
+        synchronized void setVariants(DocumentReference page, Set<String> variants)
+        {
+            Set<String> previousVariants = variants.isEmpty() ? this.variantsByPage.remove(page)
+                : this.variantsByPage.put(page, variants);
+
+            if (previousVariants != null) {
+                for (String previousVariant : previousVariants) {
+                    Set<DocumentReference> pages = this.pagesByVariant.get(previousVariant);
+                    pages.remove(page);
+                    if (pages.isEmpty()) {
+                        this.pagesByVariant.remove(previousVariant);
+                    }
+                }
+            }
+            for (String variant : variants) {
+                this.pagesByVariant.computeIfAbsent(variant, k -> new HashSet<>()).add(page);
+            }
+        }
+    }
+
+    /**
+     * Builds the usages of a wiki from the storage.
+     */
+    @FunctionalInterface
+    private interface UsagesBuilder
+    {
+        Usages build(String wiki) throws QueryException, XWikiException;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.xwiki.contrib.bookversions.VersionInheritanceException;
+import org.xwiki.contrib.bookversions.VersionInheritanceException.Reason;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Immutable graph of the versions of a collection (book or library), linking each version to the version it inherits
+ * its content from. Versions are identified by their ordinal in the graph and the preceding links are stored as an
+ * array of ordinals, so that an inheritance chain is resolved without loading any version document. The chains are
+ * resolved iteratively, at most once per version, reusing the chains already resolved for the preceding versions.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class VersionGraph
+{
+    /**
+     * The ordinal used when a version has no preceding version.
+     */
+    private static final int NONE = -1;
+
+    private final Map<DocumentReference, DocumentReference> precedingVersions;
+
+    private final List<DocumentReference> versions;
+
+    private final Map<DocumentReference, Integer> ordinals;
+
+    private final int[] predecessors;
+
+    /**
+     * The inheritance chains resolved so far, by version ordinal.
+     */
+    private final AtomicReferenceArray<List<DocumentReference>> chains;
+
+    private VersionGraph(Map<DocumentReference, DocumentReference> precedingVersions)
+    {
+        // Keep the declared links, even the ones pointing outside of the graph, so that they are restored when the
+        // missing version is (re)created.
+        this.precedingVersions = precedingVersions;
+        this.versions = Collections.unmodifiableList(new ArrayList<>(precedingVersions.keySet()));
+        this.ordinals = new HashMap<>(this.versions.size());
+        for (int i = 0; i < this.versions.size(); i++) {
+            this.ordinals.put(this.versions.get(i), i);
+        }
+        this.predecessors = new int[this.versions.size()];
+        for (int i = 0; i < this.versions.size(); i++) {
+            this.predecessors[i] = this.ordinals.getOrDefault(precedingVersions.get(this.versions.get(i)), NONE);
+        }
+        this.chains = new AtomicReferenceArray<>(this.versions.size());
+    }
+
+    /**
+     * Create a graph from the given versions.
+     *
+     * @param precedingVersions the versions of the collection, associated to the version they inherit from (or
+     *     {@code null} when they don't inherit from any version)
+     * @return the graph of the given versions
+     */
+    public static VersionGraph create(Map<DocumentReference, DocumentReference> precedingVersions)
+    {
+        return new VersionGraph(new LinkedHashMap<>(precedingVersions));
+    }
+
+    /**
+     * @return the versions of the graph
+     */
+    public List<DocumentReference> getVersions()
+    {
+        return this.versions;
+    }
+
+    /**
+     * @param versionReference a version reference
+     * @return true if the given version is part of the graph
+     */
+    public boolean contains(DocumentReference versionReference)
+    {
+        return this.ordinals.containsKey(versionReference);
+    }
+
+    /**
+     * @param versionReference a version reference
+     * @return the version the given version inherits from, or {@code null} if there is none or if the given version is
+     *     not part of the graph
+     */
+    public DocumentReference getPrecedingVersion(DocumentReference versionReference)
+    {
+        Integer ordinal = this.ordinals.get(versionReference);
+
+        if (ordinal != null && this.predecessors[ordinal] != NONE) {
+            return this.versions.get(this.predecessors[ordinal]);
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the versions to look into, in order, when searching for the content of the given version: the version itself
+     * and then all the versions it inherits from.
+     *
+     * @param versionReference a version reference
+     * @param maxDepth the maximum number of versions in the chain
+     * @return the inheritance chain of the given version, starting with the version itself
+     * @throws VersionInheritanceException if the preceding version links form a cycle, or if the chain is longer than
+     *     the given maximum depth
+     */
+    public List<DocumentReference> getInheritanceChain(DocumentReference versionReference, int maxDepth)
+        throws VersionInheritanceException
+    {
+        Integer ordinal = this.ordinals.get(versionReference);
+
+        if (ordinal == null) {
+            return Collections.singletonList(versionReference);
+        }
+
+        List<DocumentReference> chain = this.chains.get(ordinal);
+        if (chain == null) {
+            chain = resolveInheritanceChain(ordinal, maxDepth);
+        }
+        checkDepth(ordinal, chain, maxDepth);
+
+        return chain;
+    }
+
+    private List<DocumentReference> resolveInheritanceChain(int ordinal, int maxDepth)
+        throws VersionInheritanceException
+    {
+        List<DocumentReference> chain = new ArrayList<>();
+        BitSet visited = new BitSet(this.versions.size());
+        int current = ordinal;
+        while (current != NONE) {
+            if (visited.get(current)) {
+                chain.add(this.versions.get(current));
+                throw new VersionInheritanceException(Reason.CYCLE, this.versions.get(ordinal), chain);
+            }
+
+            // The rest of the chain is already known when it was resolved for a preceding version
+            List<DocumentReference> knownChain = this.chains.get(current);
+            if (knownChain != null) {
+                chain.addAll(knownChain);
+                break;
+            }
+
+            chain.add(this.versions.get(current));
+            checkDepth(ordinal, chain, maxDepth);
+            visited.set(current);
+            current = this.predecessors[current];
+        }
+        checkDepth(ordinal, chain, maxDepth);
+
+        // Each version of the chain has the rest of the chain as its own chain, so remember them all at once
+        List<DocumentReference> resolvedChain = Collections.unmodifiableList(chain);
+        for (int i = 0; i < resolvedChain.size(); i++) {
+            int versionOrdinal = this.ordinals.get(resolvedChain.get(i));
+            if (!this.chains.compareAndSet(versionOrdinal, null, resolvedChain.subList(i, resolvedChain.size()))) {
+                // The rest of the chain was already known
+                break;
+            }
+        }
+
+        return resolvedChain;
+    }
+
+    private void checkDepth(int ordinal, List<DocumentReference> chain, int maxDepth)
+        throws VersionInheritanceException
+    {
+        if (chain.size() > maxDepth) {
+            throw new VersionInheritanceException(Reason.MAX_DEPTH, this.versions.get(ordinal),
+                new ArrayList<>(chain.subList(0, maxDepth)));
+        }
+    }
+
+    /**
+     * Get a copy of this graph where the given version is added or updated.
+     *
+     * @param versionReference the version to add or update
+     * @param precedingVersionReference the version it inherits from, or {@code null} if there is none
+     * @return the updated graph
+     */
+    public VersionGraph withVersion(DocumentReference versionReference, DocumentReference precedingVersionReference)
+    {
+        Map<DocumentReference, DocumentReference> precedingVersions = toMap();
+        precedingVersions.put(versionReference, precedingVersionReference);
+
+        return new VersionGraph(precedingVersions);
+    }
+
+    /**
+     * Get a copy of this graph where the given version is removed.
+     *
+     * @param versionReference the version to remove
+     * @return the updated graph
+     */
+    public VersionGraph withoutVersion(DocumentReference versionReference)
+    {
+        if (!contains(versionReference)) {
+            return this;
+        }
+
+        Map<DocumentReference, DocumentReference> precedingVersions = toMap();
+        precedingVersions.remove(versionReference);
+
+        return new VersionGraph(precedingVersions);
+    }
+
+    private Map<DocumentReference, DocumentReference> toMap()
+    {
+        return new LinkedHashMap<>(this.precedingVersions);
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.versions + " -> " + Arrays.toString(this.predecessors);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.QueryException;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Holds the {@link VersionGraph} of each collection (book or library). A graph is built once, when first needed, and
+ * is then updated incrementally when a version is saved or deleted. A graph is built outside of any lock, so that
+ * building the graph of a collection doesn't block the saves, and it's only cached if no version of a collection
+ * without a cached graph was changed meanwhile.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = VersionGraphCache.class)
+@Singleton
+public class VersionGraphCache implements Initializable, Disposable
+{
+    private static final String CACHE_ID = "bookversions.versionGraphs";
+
+    private static final int CACHE_SIZE = 1000;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    private Cache<VersionGraph> cache;
+
+    /**
+     * Incremented on each change which can't be applied to a cached graph, so that a graph built meanwhile is not
+     * cached.
+     */
+    private long changes;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.cache = this.cacheManager.createNewCache(new LRUCacheConfiguration(CACHE_ID, CACHE_SIZE));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the version graphs cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
+    /**
+     * Get the graph of the given collection, building it if it's not already known.
+     *
+     * @param collectionReference the collection reference
+     * @param builder the builder to use if the graph is not already known
+     * @return the graph of the collection
+     * @throws QueryException if the graph can't be built
+     * @throws XWikiException if the graph can't be built
+     */
+    public VersionGraph get(DocumentReference collectionReference, VersionGraphBuilder builder)
+        throws QueryException, XWikiException
+    {
+        String key = this.serializer.serialize(collectionReference);
+        VersionGraph graph = this.cache.get(key);
+
+        if (graph == null) {
+            long buildChanges;
+            synchronized (this) {
+                buildChanges = this.changes;
+            }
+
+            // Build outside of the lock, and only cache the result if no change was missed in the meantime
+            graph = builder.build();
+            synchronized (this) {
+                // A graph cached meanwhile may already hold newer changes
+                VersionGraph cachedGraph = this.cache.get(key);
+                if (cachedGraph != null) {
+                    graph = cachedGraph;
+                } else if (buildChanges == this.changes) {
+                    this.cache.set(key, graph);
+                }
+            }
+        }
+
+        return graph;
+    }
+
+    /**
+     * Add or update a version in the graph of its collection, if that graph is already known.
+     *
+     * @param collectionReference the collection reference
+     * @param versionReference the version to add or update
+     * @param precedingVersionReference the version it inherits from, or {@code null} if there is none
+     */
+    public synchronized void setVersion(DocumentReference collectionReference, DocumentReference versionReference,
+        DocumentReference precedingVersionReference)
+    {
+        String key = this.serializer.serialize(collectionReference);
+        VersionGraph graph = this.cache.get(key);
+
+        if (graph != null) {
+            this.cache.set(key, graph.withVersion(versionReference, precedingVersionReference));
+        } else {
+            this.changes++;
+        }
+    }
+
+    /**
+     * Remove a version from the graph of its collection, if that graph is already known.
+     *
+     * @param collectionReference the collection reference
+     * @param versionReference the version to remove
+     */
+    public synchronized void removeVersion(DocumentReference collectionReference, DocumentReference versionReference)
+    {
+        String key = this.serializer.serialize(collectionReference);
+        VersionGraph graph = this.cache.get(key);
+
+        if (graph != null) {
+            this.cache.set(key, graph.withoutVersion(versionReference));
+        } else {
+            this.changes++;
+        }
+    }
+
+    /**
+     * Forget all the graphs.
+     */
+    public synchronized void removeAll()
+    {
+        this.changes++;
+        this.cache.removeAll();
+    }
+
+    /**
+     * Builds the graph of a collection from the storage.
+     */
+    @FunctionalInterface
+    public interface VersionGraphBuilder
+    {
+        /**
+         * @return the graph of the collection
+         * @throws QueryException if the versions can't be queried
+         * @throws XWikiException if the versions can't be loaded
+         */
+        VersionGraph build() throws QueryException, XWikiException;
+    }
+}
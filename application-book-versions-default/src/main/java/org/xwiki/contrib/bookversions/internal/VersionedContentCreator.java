@@ -0,0 +1,323 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * Moves the content of new versioned pages to their versioned content. By default this is done while the page is being
+ * created, but in import mode the saved pages are only recorded, and their versioned contents are created in batches
+ * by a bounded number of background workers, so that bulk imports don't pay for a second save in each page creation.
+ * The pending contents are only kept in memory: the ones not created yet when the application stops are not resumed,
+ * and their pages keep their content, which the consistency scan reports.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = VersionedContentCreator.class)
+@Singleton
+public class VersionedContentCreator implements Initializable, Disposable
+{
+    private static final String CONFIGURATION_PREFIX = "bookversions.contentCreation.";
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private Logger logger;
+
+    private final Queue<PendingContent> pendingContents = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The pages of the pending contents, including the ones being created.
+     */
+    private final Set<DocumentReference> pendingPages = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    private final AtomicLong createdCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private volatile boolean importMode;
+
+    private int maxWorkers;
+
+    private int batchSize;
+
+    private ExecutorService executor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.maxWorkers = Math.max(1, this.configuration.getProperty(CONFIGURATION_PREFIX + "threads", 2));
+        this.batchSize = Math.max(1, this.configuration.getProperty(CONFIGURATION_PREFIX + "batchSize", 100));
+        this.executor = Executors.newFixedThreadPool(this.maxWorkers, new BasicThreadFactory.Builder()
+            .namingPattern("BookVersions content creation %d").daemon(true).build());
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * @return true if the versioned contents are created in the background
+     */
+    public boolean isImportMode()
+    {
+        return this.importMode;
+    }
+
+    /**
+     * Enable or disable the import mode. The versioned contents already scheduled are still created once the import
+     * mode is disabled.
+     *
+     * @param importMode true to create the versioned contents in the background
+     */
+    public void setImportMode(boolean importMode)
+    {
+        this.importMode = importMode;
+    }
+
+    /**
+     * @return the current state of the versioned contents creation
+     */
+    public ContentCreationStatus getStatus()
+    {
+        return new ContentCreationStatus(this.importMode, this.pendingContents.size(), this.activeWorkers.get(),
+            this.createdCount.get(), this.failedCount.get());
+    }
+
+    /**
+     * Move the content of a page being created to its versioned content, right away. The page itself is saved by the
+     * caller.
+     *
+     * @param page the page being created
+     * @param contentReference the reference of the versioned content to create
+     * @throws XWikiException in case the versioned content can't be saved
+     */
+    public void create(XWikiDocument page, DocumentReference contentReference) throws XWikiException
+    {
+        XWikiContext xcontext = this.contextProvider.get();
+        XWikiDocument versionedContentDocument = xcontext.getWiki().getDocument(contentReference, xcontext);
+        versionedContentDocument.newXObject(BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE, xcontext);
+        versionedContentDocument.setSyntax(page.getSyntax());
+        versionedContentDocument.setContent(page.getContent());
+        page.setContent("");
+
+        xcontext.getWiki().saveDocument(versionedContentDocument, xcontext);
+    }
+
+    /**
+     * Record that the content of a saved page has to be moved to its versioned content, which is done in the
+     * background on behalf of the current user. The content stays in the page until then, so that nothing is lost if
+     * the application is stopped meanwhile; the pending contents are not resumed after a restart though.
+     *
+     * @param pageReference the reference of the page
+     * @param contentReference the reference of the versioned content to create
+     */
+    public void schedule(DocumentReference pageReference, DocumentReference contentReference)
+    {
+        this.pendingPages.add(pageReference);
+        this.pendingContents.add(
+            new PendingContent(pageReference, contentReference, this.contextProvider.get().getUserReference()));
+
+        startWorker();
+    }
+
+    /**
+     * @param pageReference the reference of a page
+     * @return true if the versioned content of the page is waiting to be created, or being created
+     */
+    public boolean isPending(DocumentReference pageReference)
+    {
+        return this.pendingPages.contains(pageReference);
+    }
+
+    private void startWorker()
+    {
+        int workers = this.activeWorkers.get();
+        while (workers < this.maxWorkers && !this.pendingContents.isEmpty()) {
+            if (this.activeWorkers.compareAndSet(workers, workers + 1)) {
+                this.executor.execute(new Worker());
+                return;
+            }
+            workers = this.activeWorkers.get();
+        }
+    }
+
+    private List<PendingContent> pollBatch()
+    {
+        List<PendingContent> batch = new ArrayList<>(this.batchSize);
+        PendingContent pendingContent = this.pendingContents.poll();
+        while (pendingContent != null) {
+            batch.add(pendingContent);
+            pendingContent = batch.size() < this.batchSize ? this.pendingContents.poll() : null;
+        }
+
+        return batch;
+    }
+
+    private void createFromPage(PendingContent pendingContent, XWikiContext xcontext) throws XWikiException
+    {
+        XWiki xwiki = xcontext.getWiki();
+        XWikiDocument page = xwiki.getDocument(pendingContent.pageReference, xcontext).clone();
+        XWikiDocument versionedContentDocument =
+            xwiki.getDocument(pendingContent.contentReference, xcontext).clone();
+
+        if (page.isNew() || !versionedContentDocument.isNew()) {
+            this.logger.warn("Skipping the creation of the versioned content [{}]: the page [{}] doesn't exist anymore "
+                + "or the content already exists.", pendingContent.contentReference, pendingContent.pageReference);
+            return;
+        }
+
+        versionedContentDocument.newXObject(BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE, xcontext);
+        versionedContentDocument.setSyntax(page.getSyntax());
+        versionedContentDocument.setContent(page.getContent());
+        xwiki.saveDocument(versionedContentDocument, xcontext);
+
+        if (StringUtils.isNotEmpty(page.getContent())) {
+            page.setContent("");
+            xwiki.saveDocument(page, "Moved the content to the versioned content.", true, xcontext);
+        }
+    }
+
+    /**
+     * Creates a batch of pending versioned contents, and hands its slot over to a new worker for the next batch, so
+     * that each batch gets its own execution context.
+     */
+    private final class Worker extends AbstractXWikiRunnable
+    {
+        @Override
+        protected void runInternal()
+        {
+            List<PendingContent> batch = pollBatch();
+            if (!batch.isEmpty()) {
+                createBatch(batch);
+                executor.execute(new Worker());
+            } else {
+                activeWorkers.decrementAndGet();
+                // A content may have been scheduled after the last poll, while this worker was still counted.
+                if (!pendingContents.isEmpty() && resume()) {
+                    executor.execute(new Worker());
+                }
+            }
+        }
+
+        private boolean resume()
+        {
+            int workers = activeWorkers.get();
+            while (workers < maxWorkers) {
+                if (activeWorkers.compareAndSet(workers, workers + 1)) {
+                    return true;
+                }
+                workers = activeWorkers.get();
+            }
+
+            return false;
+        }
+
+        private void createBatch(List<PendingContent> batch)
+        {
+            XWikiContext xcontext = contextProvider.get();
+            DocumentReference userReference = xcontext.getUserReference();
+
+            for (PendingContent pendingContent : batch) {
+                try {
+                    xcontext.setWikiId(pendingContent.pageReference.getWikiReference().getName());
+                    // Save on behalf of the user who created the page.
+                    xcontext.setUserReference(pendingContent.userReference);
+                    createFromPage(pendingContent, xcontext);
+                    createdCount.incrementAndGet();
+                } catch (Exception e) {
+                    failedCount.incrementAndGet();
+                    logger.error("Failed to create the versioned content [{}] of page [{}]. Root cause: [{}]",
+                        pendingContent.contentReference, pendingContent.pageReference,
+                        ExceptionUtils.getRootCauseMessage(e));
+                } finally {
+                    xcontext.setUserReference(userReference);
+                    pendingPages.remove(pendingContent.pageReference);
+                }
+            }
+
+            logger.debug("Created a batch of [{}] versioned contents, [{}] remaining.", batch.size(),
+                pendingContents.size());
+        }
+    }
+
+    /**
+     * A versioned content waiting to be created.
+     */
+    private static final class PendingContent
+    {
+        private final DocumentReference pageReference;
+
+        private final DocumentReference contentReference;
+
+        private final DocumentReference userReference;
+
+        PendingContent(DocumentReference pageReference, DocumentReference contentReference,
+            DocumentReference userReference)
+        {
+            this.pageReference = pageReference;
+            this.contentReference = contentReference;
+            this.userReference = userReference;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.QueryException;
+
+/**
+ * Records, for each collection (book or library), which versioned contents exist. The index of a collection is built
+ * from a single query the first time it is needed, and then updated when a versioned content is created or deleted, so
+ * that checking the existence of a content doesn't hit the storage. An index is built outside of any lock, so that
+ * building the index of a large collection doesn't block the saves, and it's only cached if no content of an unindexed
+ * collection was created or deleted meanwhile.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = VersionedContentIndex.class)
+@Singleton
+public class VersionedContentIndex implements Initializable, Disposable
+{
+    private static final String CACHE_ID = "bookversions.versionedContents";
+
+    private static final int CACHE_SIZE = 1000;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private CollectionQueries collectionQueries;
+
+    private Cache<CollectionContents> cache;
+
+    /**
+     * Incremented on each change which can't be applied to a cached index, so that an index built meanwhile is not
+     * cached.
+     */
+    private long changes;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.cache = this.cacheManager.createNewCache(new LRUCacheConfiguration(CACHE_ID, CACHE_SIZE));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the versioned contents cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
+    /**
+     * Check if a versioned content exists.
+     *
+     * @param collectionReference the reference of the collection of the content
+     * @param contentReference the reference of the versioned content
+     * @return true if the versioned content exists
+     * @throws QueryException if the index of the collection can't be built
+     */
+    public boolean exists(DocumentReference collectionReference, DocumentReference contentReference)
+        throws QueryException
+    {
+        return getContents(collectionReference).contains(contentReference);
+    }
+
+    /**
+     * Record a new versioned content, if the index of its collection is already known.
+     *
+     * @param collectionReference the reference of the collection of the content
+     * @param contentReference the reference of the versioned content
+     */
+    public synchronized void add(DocumentReference collectionReference, DocumentReference contentReference)
+    {
+        CollectionContents contents = this.cache.get(this.serializer.serialize(collectionReference));
+
+        if (contents != null) {
+            contents.add(contentReference);
+        } else {
+            this.changes++;
+        }
+    }
+
+    /**
+     * Forget a deleted versioned content, if the index of its collection is already known.
+     *
+     * @param collectionReference the reference of the collection of the content
+     * @param contentReference the reference of the versioned content
+     */
+    public synchronized void remove(DocumentReference collectionReference, DocumentReference contentReference)
+    {
+        CollectionContents contents = this.cache.get(this.serializer.serialize(collectionReference));
+
+        if (contents != null) {
+            contents.remove(contentReference);
+        } else {
+            this.changes++;
+        }
+    }
+
+    /**
+     * Forget the indexes of all the collections.
+     */
+    public synchronized void removeAll()
+    {
+        this.changes++;
+        this.cache.removeAll();
+    }
+
+    private CollectionContents getContents(DocumentReference collectionReference) throws QueryException
+    {
+        String key = this.serializer.serialize(collectionReference);
+        CollectionContents contents = this.cache.get(key);
+
+        if (contents == null) {
+            long buildChanges;
+            synchronized (this) {
+                buildChanges = this.changes;
+            }
+
+            // Build outside of the lock, and only cache the result if no content was missed in the meantime
+            contents = new CollectionContents();
+            for (DocumentReference contentReference : this.collectionQueries.getDocuments(collectionReference,
+                BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE)) {
+                contents.add(contentReference);
+            }
+            synchronized (this) {
+                // An index cached meanwhile may already hold newer changes
+                CollectionContents cachedContents = this.cache.get(key);
+                if (cachedContents != null) {
+                    contents = cachedContents;
+                } else if (buildChanges == this.changes) {
+                    this.cache.set(key, contents);
+                }
+            }
+        }
+
+        return contents;
+    }
+
+    /**
+     * The versioned contents of a collection: for each page, identified by its space, the bit set of the versions
+     * having content, each version name being given an ordinal.
+     */
+    private static final class CollectionContents
+    {
+        private final Map<String, Integer> versionOrdinals = new HashMap<>();
+
+        private final Map<EntityReference, BitSet> pages = new HashMap<>();
+
+        synchronized boolean contains(DocumentReference contentReference)
+        {
+            Integer ordinal = this.versionOrdinals.get(contentReference.getName());
+            BitSet versions = this.pages.get(contentReference.getParent());
+
+            return ordinal != null && versions != null && versions.get(ordinal);
+        }
+
+        synchronized void add(DocumentReference contentReference)
+        {
+            Integer ordinal = this.versionOrdinals.get(contentReference.getName());
+            if (ordinal == null) {
+                ordinal = this.versionOrdinals.size();
+                this.versionOrdinals.put(contentReference.getName(), ordinal);
+            }
+
+            this.pages.computeIfAbsent(contentReference.getParent(), k -> new BitSet()).set(ordinal);
+        }
+
+        synchronized void remove(DocumentReference contentReference)
+        {
+            Integer ordinal = this.versionOrdinals.get(contentReference.getName());
+            BitSet versions = this.pages.get(contentReference.getParent());
+
+            if (ordinal != null && versions != null) {
+                versions.clear(ordinal);
+                if (versions.isEmpty()) {
+                    this.pages.remove(contentReference.getParent());
+                }
+            }
+        }
+    }
+}
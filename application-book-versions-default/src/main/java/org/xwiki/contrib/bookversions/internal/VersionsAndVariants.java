@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The versions and the variants of a collection (book or library), as serialized local references, the most recently
+ * created first. The versions and variants are also indexed by name, so that they are found without probing the
+ * documents.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class VersionsAndVariants
+{
+    private final List<String> versions;
+
+    private final List<String> variants;
+
+    private final Map<String, DocumentReference> versionsByName;
+
+    private final Map<String, DocumentReference> variantsByName;
+
+    /**
+     * @param versions the versions of the collection, the most recently created first
+     * @param variants the variants of the collection, the most recently created first
+     * @param versionsByName the versions of the collection, by name
+     * @param variantsByName the variants of the collection, by name
+     */
+    public VersionsAndVariants(List<String> versions, List<String> variants,
+        Map<String, DocumentReference> versionsByName, Map<String, DocumentReference> variantsByName)
+    {
+        this.versions = Collections.unmodifiableList(versions);
+        this.variants = Collections.unmodifiableList(variants);
+        this.versionsByName = Collections.unmodifiableMap(versionsByName);
+        this.variantsByName = Collections.unmodifiableMap(variantsByName);
+    }
+
+    /**
+     * @return the versions of the collection, the most recently created first
+     */
+    public List<String> getVersions()
+    {
+        return this.versions;
+    }
+
+    /**
+     * @return the variants of the collection, the most recently created first
+     */
+    public List<String> getVariants()
+    {
+        return this.variants;
+    }
+
+    /**
+     * @param name the name of a version, i.e. the name of its terminal document or of its space
+     * @return the reference of the version, or null if the collection has no such version
+     */
+    public DocumentReference getVersionReference(String name)
+    {
+        return this.versionsByName.get(name);
+    }
+
+    /**
+     * @param name the name of a variant, i.e. the name of its terminal document or of its space
+     * @return the reference of the variant, or null if the collection has no such variant
+     */
+    public DocumentReference getVariantReference(String name)
+    {
+        return this.variantsByName.get(name);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "versions " + this.versions + ", variants " + this.variants;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.QueryException;
+
+/**
+ * Holds the {@link VersionsAndVariants} of each collection (book or library). They are queried once, when first
+ * needed, and forgotten when a version or a variant of the collection is created, updated or deleted. They are queried
+ * outside of any lock, so that the query doesn't block the saves, and only cached if nothing was forgotten meanwhile.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component(roles = VersionsAndVariantsCache.class)
+@Singleton
+public class VersionsAndVariantsCache implements Initializable, Disposable
+{
+    private static final String CACHE_ID = "bookversions.versionsAndVariants";
+
+    private static final int CACHE_SIZE = 1000;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private CollectionQueries collectionQueries;
+
+    private Cache<VersionsAndVariants> cache;
+
+    /**
+     * Incremented on each removal, so that versions and variants queried meanwhile are not cached.
+     */
+    private long removals;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.cache = this.cacheManager.createNewCache(new LRUCacheConfiguration(CACHE_ID, CACHE_SIZE));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the versions and variants cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
+    /**
+     * Get the versions and the variants of the given collection, querying them if they're not already known.
+     *
+     * @param collectionReference the collection reference
+     * @return the versions and the variants of the collection
+     * @throws QueryException if the versions and the variants can't be queried
+     */
+    public VersionsAndVariants get(DocumentReference collectionReference) throws QueryException
+    {
+        String key = this.serializer.serialize(collectionReference);
+        VersionsAndVariants versionsAndVariants = this.cache.get(key);
+
+        if (versionsAndVariants == null) {
+            long queryRemovals;
+            synchronized (this) {
+                queryRemovals = this.removals;
+            }
+
+            // Query outside of the lock, and only cache the result if nothing was removed in the meantime
+            versionsAndVariants = this.collectionQueries.getVersionsAndVariants(collectionReference);
+            synchronized (this) {
+                if (queryRemovals == this.removals) {
+                    this.cache.set(key, versionsAndVariants);
+                }
+            }
+        }
+
+        return versionsAndVariants;
+    }
+
+    /**
+     * Forget the versions and the variants of the given collection.
+     *
+     * @param collectionReference the collection reference
+     */
+    public synchronized void remove(DocumentReference collectionReference)
+    {
+        this.removals++;
+        this.cache.remove(this.serializer.serialize(collectionReference));
+    }
+
+    /**
+     * Forget the versions and the variants of all the collections.
+     */
+    public synchronized void removeAll()
+    {
+        this.removals++;
+        this.cache.removeAll();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal.job;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xwiki.job.AbstractRequest;
+import org.xwiki.job.Request;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+
+/**
+ * The request of the {@link BookPublisher}.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public class BookPublicationRequest extends AbstractRequest
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final String PROPERTY_BOOK = "book";
+
+    private static final String PROPERTY_VERSION = "version";
+
+    private static final String PROPERTY_VARIANT = "variant";
+
+    private static final String PROPERTY_TARGET = "target";
+
+    private static final String PROPERTY_USER = "user";
+
+    private static final String PROPERTY_MANIFEST = "manifest";
+
+    /**
+     * @param bookReference the book to publish
+     * @param versionReference the version of the book to publish
+     * @param variantReference the variant of the book to publish, or {@code null} to publish all the pages without
+     *     any variant specific content
+     * @param targetReference the space where the book is published
+     * @param userReference the user saving the published pages
+     * @param manifestReference the document holding the manifest of the publication, or {@code null} to always
+     *     publish all the pages
+     */
+    public BookPublicationRequest(DocumentReference bookReference, DocumentReference versionReference,
+        DocumentReference variantReference, SpaceReference targetReference, DocumentReference userReference,
+        DocumentReference manifestReference)
+    {
+        setId(getId(targetReference));
+        setProperty(PROPERTY_BOOK, bookReference);
+        setProperty(PROPERTY_VERSION, versionReference);
+        setProperty(PROPERTY_VARIANT, variantReference);
+        setProperty(PROPERTY_TARGET, targetReference);
+        setProperty(PROPERTY_USER, userReference);
+        setProperty(PROPERTY_MANIFEST, manifestReference);
+    }
+
+    /**
+     * @param request the request to copy
+     */
+    public BookPublicationRequest(Request request)
+    {
+        super(request);
+    }
+
+    /**
+     * @param targetReference the space where the book is published
+     * @return the identifier of the publication in the given space
+     */
+    public static List<String> getId(SpaceReference targetReference)
+    {
+        List<String> id = new ArrayList<>();
+        id.add("bookversions");
+        id.add("publication");
+        for (EntityReference reference : targetReference.getReversedReferenceChain()) {
+            id.add(reference.getName());
+        }
+
+        return id;
+    }
+
+    /**
+     * @return the book to publish
+     */
+    public DocumentReference getBookReference()
+    {
+        return getProperty(PROPERTY_BOOK);
+    }
+
+    /**
+     * @return the version of the book to publish
+     */
+    public DocumentReference getVersionReference()
+    {
+        return getProperty(PROPERTY_VERSION);
+    }
+
+    /**
+     * @return the variant of the book to publish, or {@code null} to publish all the pages without any variant
+     *     specific content
+     */
+    public DocumentReference getVariantReference()
+    {
+        return getProperty(PROPERTY_VARIANT);
+    }
+
+    /**
+     * @return the space where the book is published
+     */
+    public SpaceReference getTargetReference()
+    {
+        return getProperty(PROPERTY_TARGET);
+    }
+
+    /**
+     * @return the user saving the published pages
+     */
+    public DocumentReference getUserReference()
+    {
+        return getProperty(PROPERTY_USER);
+    }
+
+    /**
+     * @return the document holding the manifest of the publication, or {@code null} to always publish all the pages
+     */
+    public DocumentReference getManifestReference()
+    {
+        return getProperty(PROPERTY_MANIFEST);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal.job;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.logging.LoggerManager;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * The status of the {@link BookPublisher}, counting the pages handled by the publication. The pages are published in
+ * parallel, so the counters can be updated from several threads.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public class BookPublicationStatus extends DefaultJobStatus<BookPublicationRequest>
+{
+    private final AtomicInteger publishedPages = new AtomicInteger();
+
+    private final AtomicInteger excludedPages = new AtomicInteger();
+
+    private final AtomicInteger skippedPages = new AtomicInteger();
+
+    private final AtomicInteger failedPages = new AtomicInteger();
+
+    private final AtomicInteger unchangedPages = new AtomicInteger();
+
+    private final AtomicInteger deletedPages = new AtomicInteger();
+
+    /**
+     * @param request the request of the job
+     * @param parentJobStatus the status of the parent job, if any
+     * @param observationManager the observation manager
+     * @param loggerManager the logger manager
+     */
+    public BookPublicationStatus(BookPublicationRequest request, JobStatus parentJobStatus,
+        ObservationManager observationManager, LoggerManager loggerManager)
+    {
+        super(BookPublisher.JOBTYPE, request, parentJobStatus, observationManager, loggerManager);
+    }
+
+    /**
+     * Count a published page.
+     */
+    public void incrementPublishedPages()
+    {
+        this.publishedPages.incrementAndGet();
+    }
+
+    /**
+     * @return the number of pages published so far
+     */
+    public int getPublishedPages()
+    {
+        return this.publishedPages.get();
+    }
+
+    /**
+     * Count a page which is not part of the published variant.
+     */
+    public void incrementExcludedPages()
+    {
+        this.excludedPages.incrementAndGet();
+    }
+
+    /**
+     * @return the number of pages which are not part of the published variant
+     */
+    public int getExcludedPages()
+    {
+        return this.excludedPages.get();
+    }
+
+    /**
+     * Count a page without content for the published version.
+     */
+    public void incrementSkippedPages()
+    {
+        this.skippedPages.incrementAndGet();
+    }
+
+    /**
+     * @return the number of pages without content for the published version
+     */
+    public int getSkippedPages()
+    {
+        return this.skippedPages.get();
+    }
+
+    /**
+     * Count a page which failed to be published.
+     */
+    public void incrementFailedPages()
+    {
+        this.failedPages.incrementAndGet();
+    }
+
+    /**
+     * @return the number of pages which failed to be published
+     */
+    public int getFailedPages()
+    {
+        return this.failedPages.get();
+    }
+
+    /**
+     * Count a page which didn't change since the previous publication.
+     */
+    public void incrementUnchangedPages()
+    {
+        this.unchangedPages.incrementAndGet();
+    }
+
+    /**
+     * @return the number of pages which didn't change since the previous publication
+     */
+    public int getUnchangedPages()
+    {
+        return this.unchangedPages.get();
+    }
+
+    /**
+     * Count a page of the previous publication which has been deleted.
+     */
+    public void incrementDeletedPages()
+    {
+        this.deletedPages.incrementAndGet();
+    }
+
+    /**
+     * @return the number of pages of the previous publication which have been deleted
+     */
+    public int getDeletedPages()
+    {
+        return this.deletedPages.get();
+    }
+}
@@ -0,0 +1,508 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.bookversions.BookVersionsManager;
+import org.xwiki.contrib.bookversions.internal.BookVersionsConstants;
+import org.xwiki.contrib.bookversions.internal.CollectionQueries;
+import org.xwiki.contrib.bookversions.internal.RequestMemo;
+import org.xwiki.contrib.bookversions.internal.VariantMacroFilter;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.JobGroupPath;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.QueryException;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.parser.ParseException;
+import org.xwiki.security.authorization.AccessDeniedException;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * Publishes a version of a book, optionally restricted to a variant, to a target space. The content displayed by each
+ * page for the version is resolved once for the whole book; the pages which are not part of the variant are dropped,
+ * and the variant macros are applied so that the published pages hold plain content. The pages are then published in
+ * batches, by a bounded pool of workers. When the publication has a manifest, only the pages whose sources changed
+ * since the previous publication are saved again, and the pages which are not published anymore are deleted.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Named(BookPublisher.JOBTYPE)
+public class BookPublisher extends AbstractJob<BookPublicationRequest, BookPublicationStatus> implements GroupedJob
+{
+    /**
+     * The type of the job.
+     */
+    public static final String JOBTYPE = "bookversions.publication";
+
+    private static final String CONFIGURATION_PREFIX = "bookversions.publication.";
+
+    private static final String MANIFEST_NAME = "bookversions-publication.properties";
+
+    private static final char HASH_SEPARATOR = '\0';
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private Provider<BookVersionsManager> bookVersionsManagerProvider;
+
+    @Inject
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @Inject
+    private CollectionQueries collectionQueries;
+
+    @Inject
+    private VariantMacroFilter variantMacroFilter;
+
+    @Inject
+    private RequestMemo requestMemo;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    private AuthorizationManager authorizationManager;
+
+    /**
+     * The manifest of the previous publication, empty when there's none.
+     */
+    private final PublicationManifest previousManifest = new PublicationManifest();
+
+    /**
+     * The manifest of this publication, filled while publishing.
+     */
+    private final PublicationManifest manifest = new PublicationManifest();
+
+    /**
+     * The library versions used by the published version, which the published content depends on.
+     */
+    private String libraries;
+
+    @Override
+    public String getType()
+    {
+        return JOBTYPE;
+    }
+
+    @Override
+    public JobGroupPath getGroupPath()
+    {
+        // Only one publication at a time for a given target
+        return new JobGroupPath(this.request.getId());
+    }
+
+    @Override
+    protected BookPublicationStatus createNewStatus(BookPublicationRequest request)
+    {
+        JobStatus parentJobStatus = this.jobContext.getCurrentJob() != null
+            ? this.jobContext.getCurrentJob().getStatus() : null;
+
+        return new BookPublicationStatus(request, parentJobStatus, this.observationManager, this.loggerManager);
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        DocumentReference bookReference = this.request.getBookReference();
+        DocumentReference versionReference = this.request.getVersionReference();
+        DocumentReference variantReference = this.request.getVariantReference();
+        String variant = variantReference != null ? this.localSerializer.serialize(variantReference) : null;
+        if (versionReference == null) {
+            this.logger.error("No version to publish for book [{}], the publication [{}] is left untouched.",
+                bookReference, this.request.getTargetReference());
+            return;
+        }
+
+        // The collection queries run on the current wiki
+        XWikiContext xcontext = this.contextProvider.get();
+        String currentWiki = xcontext.getWikiId();
+        List<PublishedPage> pages;
+        xcontext.setWikiId(bookReference.getWikiReference().getName());
+        try {
+            pages = getPublishedPages(bookReference, versionReference);
+            this.libraries = getLibraries(versionReference, xcontext);
+        } finally {
+            xcontext.setWikiId(currentWiki);
+        }
+        if (pages.isEmpty()) {
+            // Most likely a version which doesn't resolve anymore: publishing nothing would delete the whole previous
+            // publication
+            this.logger.error("No page of book [{}] has content for version [{}], the publication [{}] is left "
+                + "untouched.", bookReference, versionReference, this.request.getTargetReference());
+            return;
+        }
+        DocumentReference manifestReference = this.request.getManifestReference();
+        if (manifestReference != null) {
+            loadManifest(manifestReference, xcontext);
+        }
+
+        int threads = Math.max(1, this.configuration.getProperty(CONFIGURATION_PREFIX + "threads", 4));
+        int batchSize = Math.max(1, this.configuration.getProperty(CONFIGURATION_PREFIX + "batchSize", 50));
+        List<List<PublishedPage>> batches = new ArrayList<>();
+        for (int i = 0; i < pages.size(); i += batchSize) {
+            batches.add(pages.subList(i, Math.min(i + batchSize, pages.size())));
+        }
+
+        this.progressManager.pushLevelProgress(batches.size(), this);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, batches.size())),
+            new BasicThreadFactory.Builder().namingPattern("BookVersions publication %d").daemon(true).build());
+        try {
+            List<Future<?>> futures = new ArrayList<>(batches.size());
+            for (List<PublishedPage> batch : batches) {
+                futures.add(executor.submit(new Worker(batch, variant)));
+            }
+            // The progress is only updated from the job thread
+            for (Future<?> future : futures) {
+                this.progressManager.startStep(this);
+                future.get();
+                this.progressManager.endStep(this);
+            }
+        } finally {
+            executor.shutdownNow();
+            this.progressManager.popLevelProgress(this);
+        }
+
+        if (manifestReference != null) {
+            // Delete the unpublished pages and save the manifest on behalf of the publishing user, as the workers do
+            DocumentReference currentUserReference = xcontext.getUserReference();
+            xcontext.setUserReference(this.request.getUserReference());
+            try {
+                deleteUnpublishedPages(xcontext);
+                saveManifest(manifestReference, xcontext);
+            } finally {
+                xcontext.setUserReference(currentUserReference);
+            }
+        }
+
+        this.logger.info("Published version [{}] of book [{}] for variant [{}] to [{}]: [{}] pages published, [{}] "
+            + "unchanged, [{}] deleted, [{}] not part of the variant, [{}] without content for the version, "
+            + "[{}] failed.",
+            versionReference, bookReference, variantReference, this.request.getTargetReference(),
+            this.status.getPublishedPages(), this.status.getUnchangedPages(), this.status.getDeletedPages(),
+            this.status.getExcludedPages(), this.status.getSkippedPages(), this.status.getFailedPages());
+    }
+
+    private String getLibraries(DocumentReference versionReference, XWikiContext xcontext) throws XWikiException
+    {
+        List<String> libraryVersions = new ArrayList<>();
+        if (versionReference != null) {
+            for (BaseObject libraryObject : xcontext.getWiki().getDocument(versionReference, xcontext)
+                .getXObjects(BookVersionsConstants.BOOKLIBRARYREFERENCE_CLASS_REFERENCE)) {
+                if (libraryObject != null) {
+                    libraryVersions.add(
+                        libraryObject.getStringValue(BookVersionsConstants.BOOKLIBRARYREFERENCE_PROP_LIBRARY) + '='
+                        + libraryObject.getStringValue(BookVersionsConstants.BOOKLIBRARYREFERENCE_PROP_LIBRARYVERSION));
+                }
+            }
+        }
+        Collections.sort(libraryVersions);
+
+        return String.join(",", libraryVersions);
+    }
+
+    private void loadManifest(DocumentReference manifestReference, XWikiContext xcontext)
+        throws XWikiException, IOException
+    {
+        XWikiAttachment attachment =
+            xcontext.getWiki().getDocument(manifestReference, xcontext).getAttachment(MANIFEST_NAME);
+        if (attachment != null) {
+            try (InputStream inputStream = attachment.getContentInputStream(xcontext)) {
+                this.previousManifest.load(inputStream);
+            }
+        }
+    }
+
+    private void saveManifest(DocumentReference manifestReference, XWikiContext xcontext)
+        throws XWikiException, IOException
+    {
+        XWikiDocument manifestDocument = xcontext.getWiki().getDocument(manifestReference, xcontext).clone();
+        manifestDocument.setAttachment(MANIFEST_NAME, new ByteArrayInputStream(this.manifest.toByteArray()),
+            xcontext);
+        xcontext.getWiki().saveDocument(manifestDocument, "Updated the publication manifest.", true, xcontext);
+    }
+
+    /**
+     * Delete the pages of the previous publication which are not part of this one anymore. The manifest can be edited
+     * by anyone who can edit the publication, so only the pages of the target space which the publishing user can
+     * delete are deleted.
+     */
+    private void deleteUnpublishedPages(XWikiContext xcontext)
+    {
+        for (String target : this.previousManifest.getRemovedTargets(this.manifest)) {
+            DocumentReference targetReference =
+                this.referenceResolver.resolve(target, this.request.getTargetReference());
+            if (!targetReference.hasParent(this.request.getTargetReference())) {
+                // Not a published page: forget it
+                this.logger.warn("Skipped the deletion of [{}], which is not part of the publication [{}].",
+                    targetReference, this.request.getTargetReference());
+            } else if (!this.authorizationManager.hasAccess(Right.DELETE, this.request.getUserReference(),
+                targetReference)) {
+                // Keep it in the manifest, to delete it with a later publication
+                this.manifest.setFailed(target);
+                this.logger.warn("Skipped the deletion of [{}], which [{}] is not allowed to delete.",
+                    targetReference, this.request.getUserReference());
+            } else {
+                deleteUnpublishedPage(target, targetReference, xcontext);
+            }
+        }
+    }
+
+    private void deleteUnpublishedPage(String target, DocumentReference targetReference, XWikiContext xcontext)
+    {
+        XWiki xwiki = xcontext.getWiki();
+        try {
+            XWikiDocument targetDocument = xwiki.getDocument(targetReference, xcontext);
+            if (!targetDocument.isNew()) {
+                xwiki.deleteDocument(targetDocument, xcontext);
+            }
+            this.status.incrementDeletedPages();
+        } catch (XWikiException e) {
+            // Keep it in the manifest, to delete it with the next publication
+            this.manifest.setFailed(target);
+            this.logger.error("Failed to delete the unpublished page [{}]. Root cause: [{}]", targetReference,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private List<PublishedPage> getPublishedPages(DocumentReference bookReference, DocumentReference versionReference)
+        throws QueryException, XWikiException
+    {
+        // Resolve the content of all the pages at once, walking the version chain only once
+        Map<DocumentReference, DocumentReference> contents =
+            this.bookVersionsManagerProvider.get().getInheritedContentReferences(bookReference, versionReference);
+
+        List<PublishedPage> pages = new ArrayList<>();
+        for (DocumentReference pageReference : this.collectionQueries.getDocuments(bookReference,
+            BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE)) {
+            DocumentReference contentReference = contents.get(pageReference);
+            if (contentReference != null) {
+                pages.add(new PublishedPage(pageReference, contentReference, pageReference
+                    .replaceParent(bookReference.getLastSpaceReference(), this.request.getTargetReference())));
+            } else {
+                this.status.incrementSkippedPages();
+            }
+        }
+
+        return pages;
+    }
+
+    /**
+     * Publish a page, when the requesting user can view its sources and edit its target.
+     *
+     * @return what has been done with the page
+     */
+    private Outcome publish(PublishedPage page, String variant, XWikiContext xcontext)
+        throws XWikiException, ParseException, AccessDeniedException
+    {
+        // The job runs with its own rights: publish only what the requesting user could copy by hand
+        DocumentReference userReference = this.request.getUserReference();
+        this.authorizationManager.checkAccess(Right.VIEW, userReference, page.contentReference);
+        this.authorizationManager.checkAccess(Right.VIEW, userReference, page.pageReference);
+        this.authorizationManager.checkAccess(Right.EDIT, userReference, page.targetReference);
+
+        XWiki xwiki = xcontext.getWiki();
+        XWikiDocument contentDocument = xwiki.getDocument(page.contentReference, xcontext);
+        if (!isInVariant(contentDocument, variant)) {
+            return Outcome.EXCLUDED;
+        }
+
+        XWikiDocument pageDocument = page.contentReference.equals(page.pageReference) ? contentDocument
+            : xwiki.getDocument(page.pageReference, xcontext);
+
+        // The published content only depends on the sources hashed, so there's nothing to save when they didn't change
+        String target = this.localSerializer.serialize(page.targetReference);
+        String hash = getHash(page, contentDocument, pageDocument, variant);
+        if (this.previousManifest.isUnchanged(target, hash) && xwiki.exists(page.targetReference, xcontext)) {
+            this.manifest.setHash(target, hash);
+            return Outcome.UNCHANGED;
+        }
+
+        XDOM xdom = contentDocument.getXDOM();
+        this.variantMacroFilter.filter(xdom, contentDocument.getSyntax(), page.contentReference, variant);
+
+        XWikiDocument targetDocument = xwiki.getDocument(page.targetReference, xcontext).clone();
+        targetDocument.setSyntax(contentDocument.getSyntax());
+        targetDocument.setTitle(pageDocument.getTitle());
+        targetDocument.setContent(xdom);
+        xwiki.saveDocument(targetDocument, String.format("Published from [%s].",
+            this.localSerializer.serialize(page.contentReference)), xcontext);
+        this.manifest.setHash(target, hash);
+
+        return Outcome.PUBLISHED;
+    }
+
+    private String getHash(PublishedPage page, XWikiDocument contentDocument, XWikiDocument pageDocument,
+        String variant)
+    {
+        StringBuilder sources = new StringBuilder();
+        sources.append(this.localSerializer.serialize(page.contentReference)).append(HASH_SEPARATOR);
+        sources.append(StringUtils.defaultString(variant)).append(HASH_SEPARATOR);
+        sources.append(this.libraries).append(HASH_SEPARATOR);
+        sources.append(contentDocument.getSyntax().toIdString()).append(HASH_SEPARATOR);
+        sources.append(pageDocument.getTitle()).append(HASH_SEPARATOR);
+        sources.append(contentDocument.getContent());
+
+        return DigestUtils.sha256Hex(sources.toString());
+    }
+
+    /**
+     * A page without associated variants is part of all the variants.
+     */
+    private boolean isInVariant(XWikiDocument contentDocument, String variant)
+    {
+        BaseObject variantsObject = contentDocument.getXObject(BookVersionsConstants.VARIANTSLIST_CLASS_REFERENCE);
+        if (variant == null || variantsObject == null) {
+            return true;
+        }
+        List<?> variants = variantsObject.getListValue(BookVersionsConstants.VARIANTSLIST_PROP_VARIANTS);
+        if (variants.isEmpty()) {
+            return true;
+        }
+        // The listed variants are normalized like in the navigation, since they may be relative or hold the wiki
+        for (Object listedVariant : variants) {
+            if (variant.equals(
+                this.variantMacroFilter.getVariant((String) listedVariant, contentDocument.getDocumentReference()))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Publishes a batch of pages.
+     */
+    private final class Worker extends AbstractXWikiRunnable
+    {
+        private final List<PublishedPage> batch;
+
+        private final String variant;
+
+        Worker(List<PublishedPage> batch, String variant)
+        {
+            this.batch = batch;
+            this.variant = variant;
+        }
+
+        @Override
+        protected void runInternal()
+        {
+            XWikiContext xcontext = contextProvider.get();
+            xcontext.setWikiId(request.getTargetReference().getWikiReference().getName());
+            xcontext.setUserReference(request.getUserReference());
+
+            for (PublishedPage page : this.batch) {
+                try {
+                    switch (publish(page, this.variant, xcontext)) {
+                        case PUBLISHED:
+                            status.incrementPublishedPages();
+                            break;
+                        case UNCHANGED:
+                            status.incrementUnchangedPages();
+                            break;
+                        default:
+                            status.incrementExcludedPages();
+                    }
+                } catch (Exception e) {
+                    manifest.setFailed(localSerializer.serialize(page.targetReference));
+                    status.incrementFailedPages();
+                    logger.error("Failed to publish page [{}] to [{}]. Root cause: [{}]", page.pageReference,
+                        page.targetReference, ExceptionUtils.getRootCauseMessage(e));
+                } finally {
+                    // Don't keep the lookups of the published pages for the whole batch
+                    requestMemo.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * What has been done with a page.
+     */
+    private enum Outcome
+    {
+        PUBLISHED,
+        UNCHANGED,
+        EXCLUDED
+    }
+
+    /**
+     * A page to publish.
+     */
+    private static final class PublishedPage
+    {
+        private final DocumentReference pageReference;
+
+        private final DocumentReference contentReference;
+
+        private final DocumentReference targetReference;
+
+        PublishedPage(DocumentReference pageReference, DocumentReference contentReference,
+            DocumentReference targetReference)
+        {
+            this.pageReference = pageReference;
+            this.contentReference = contentReference;
+            this.targetReference = targetReference;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal.job;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * An inconsistency found in the structure of a versioned collection (book or library).
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class ConsistencyIssue
+{
+    /**
+     * The kinds of inconsistencies.
+     */
+    public enum Type
+    {
+        /**
+         * The preceding version of a version is not a version of the same collection.
+         */
+        BROKEN_PRECEDING_VERSION,
+
+        /**
+         * A version inherits, directly or not, from itself.
+         */
+        VERSION_CYCLE,
+
+        /**
+         * A versioned content is not below a book page, or is not named after a version of the collection.
+         */
+        ORPHANED_CONTENT,
+
+        /**
+         * A document below a book page, named after a version of the collection, doesn't have the versioned content
+         * object, so it's not considered as the content of the page for that version.
+         */
+        MISSING_CONTENT_OBJECT,
+
+        /**
+         * A versioned page holds content which was not moved to a versioned content, e.g. because the application was
+         * stopped before the versioned contents pending in import mode were created.
+         */
+        UNMOVED_CONTENT,
+
+        /**
+         * A library reference of a version doesn't point to a version of a library.
+         */
+        BROKEN_LIBRARY_REFERENCE,
+
+        /**
+         * A document holds more than one object of a book versions class.
+         */
+        DUPLICATE_OBJECT
+    }
+
+    private final Type type;
+
+    private final DocumentReference documentReference;
+
+    private final String details;
+
+    private final boolean repaired;
+
+    /**
+     * @param type the kind of inconsistency
+     * @param documentReference the document having the inconsistency
+     * @param details a description of the inconsistency
+     * @param repaired true if the inconsistency has been repaired
+     */
+    public ConsistencyIssue(Type type, DocumentReference documentReference, String details, boolean repaired)
+    {
+        this.type = type;
+        this.documentReference = documentReference;
+        this.details = details;
+        this.repaired = repaired;
+    }
+
+    /**
+     * @return the kind of inconsistency
+     */
+    public Type getType()
+    {
+        return this.type;
+    }
+
+    /**
+     * @return the document having the inconsistency
+     */
+    public DocumentReference getDocumentReference()
+    {
+        return this.documentReference;
+    }
+
+    /**
+     * @return a description of the inconsistency
+     */
+    public String getDetails()
+    {
+        return this.details;
+    }
+
+    /**
+     * @return true if the inconsistency has been repaired
+     */
+    public boolean isRepaired()
+    {
+        return this.repaired;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.type + " " + this.documentReference + ": " + this.details + (this.repaired ? " (repaired)" : "");
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal.job;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.bookversions.BookVersionsManager;
+import org.xwiki.contrib.bookversions.VersionInheritanceException;
+import org.xwiki.contrib.bookversions.internal.BookVersionsConstants;
+import org.xwiki.contrib.bookversions.internal.CollectionQueries;
+import org.xwiki.contrib.bookversions.internal.RequestMemo;
+import org.xwiki.contrib.bookversions.internal.VersionGraph;
+import org.xwiki.contrib.bookversions.internal.VersionedContentCreator;
+import org.xwiki.contrib.bookversions.internal.job.ConsistencyIssue.Type;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.JobGroupPath;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Scans the versioned collections (books and libraries) of a wiki, one batch of collections at a time, and reports
+ * the inconsistencies of their structure: broken or cyclic version chains, orphaned versioned contents, documents
+ * missing their versioned content object, versioned pages still holding content, broken library references and
+ * duplicate objects. When requested, the inconsistencies which can be repaired without losing content are repaired;
+ * saving the repaired documents updates the book versions caches.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Named(ConsistencyScanJob.JOBTYPE)
+public class ConsistencyScanJob extends AbstractJob<ConsistencyScanRequest, ConsistencyScanStatus>
+    implements GroupedJob
+{
+    /**
+     * The type of the job.
+     */
+    public static final String JOBTYPE = "bookversions.consistency";
+
+    private static final int BATCH_SIZE = 100;
+
+    private static final String REPAIR_COMMENT = "Repaired the book versions structure.";
+
+    /**
+     * The classes expected at most once per document.
+     */
+    private static final List<EntityReference> SINGLE_OBJECT_CLASSES = Arrays.asList(
+        BookVersionsConstants.BOOK_CLASS_REFERENCE, BookVersionsConstants.LIBRARY_CLASS_REFERENCE,
+        BookVersionsConstants.VERSION_CLASS_REFERENCE, BookVersionsConstants.VARIANT_CLASS_REFERENCE,
+        BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE, BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE);
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private Provider<QueryManager> queryManagerProvider;
+
+    @Inject
+    private Provider<BookVersionsManager> bookVersionsManagerProvider;
+
+    @Inject
+    private CollectionQueries collectionQueries;
+
+    @Inject
+    private RequestMemo requestMemo;
+
+    @Inject
+    private VersionedContentCreator versionedContentCreator;
+
+    @Inject
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Override
+    public String getType()
+    {
+        return JOBTYPE;
+    }
+
+    @Override
+    public JobGroupPath getGroupPath()
+    {
+        // Only one scan at a time for a given wiki
+        return new JobGroupPath(this.request.getId());
+    }
+
+    @Override
+    protected ConsistencyScanStatus createNewStatus(ConsistencyScanRequest request)
+    {
+        JobStatus parentJobStatus = this.jobContext.getCurrentJob() != null
+            ? this.jobContext.getCurrentJob().getStatus() : null;
+
+        return new ConsistencyScanStatus(request, parentJobStatus, this.observationManager, this.loggerManager);
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        XWikiContext xcontext = this.contextProvider.get();
+        String currentWiki = xcontext.getWikiId();
+        DocumentReference currentUserReference = xcontext.getUserReference();
+        String wiki = this.request.getWiki();
+        WikiReference wikiReference = new WikiReference(wiki);
+
+        // The collection queries run on the current wiki, and the repairs are saved on behalf of the requesting user
+        xcontext.setWikiId(wiki);
+        xcontext.setUserReference(this.request.getUserReference());
+        try {
+            long collectionCount = (Long) createCollectionsQuery("select count(distinct doc.fullName)", "")
+                .setWiki(wiki).execute().get(0);
+            this.progressManager.pushLevelProgress((int) collectionCount, this);
+            try {
+                int offset = 0;
+                List<String> batch;
+                do {
+                    batch = createCollectionsQuery("select distinct doc.fullName", " order by doc.fullName")
+                        .setWiki(wiki).setOffset(offset).setLimit(BATCH_SIZE).execute();
+                    for (String collection : batch) {
+                        this.progressManager.startStep(this);
+                        scanCollection(this.referenceResolver.resolve(collection, wikiReference));
+                        // Don't keep the lookups of the scanned collections for the whole scan
+                        this.requestMemo.clear();
+                        this.status.incrementScannedCollections();
+                        this.progressManager.endStep(this);
+                    }
+                    offset += batch.size();
+                } while (batch.size() == BATCH_SIZE);
+            } finally {
+                this.progressManager.popLevelProgress(this);
+            }
+        } finally {
+            xcontext.setWikiId(currentWiki);
+            xcontext.setUserReference(currentUserReference);
+        }
+
+        this.logger.info("Scanned [{}] collections of wiki [{}], found the following issues: [{}]",
+            this.status.getScannedCollections(), wiki, this.status.getIssueCounts());
+    }
+
+    /**
+     * The order is only given to the paged query: an aggregate query can't be ordered by a column it doesn't group.
+     */
+    private Query createCollectionsQuery(String select, String orderBy) throws QueryException
+    {
+        return this.queryManagerProvider.get()
+            .createQuery(select + " from XWikiDocument doc, BaseObject obj where doc.fullName = obj.name "
+                + "and obj.className in (:bookClass, :libraryClass)" + orderBy, Query.HQL)
+            .bindValue("bookClass", this.localSerializer.serialize(BookVersionsConstants.BOOK_CLASS_REFERENCE))
+            .bindValue("libraryClass",
+                this.localSerializer.serialize(BookVersionsConstants.LIBRARY_CLASS_REFERENCE));
+    }
+
+    private void scanCollection(DocumentReference collectionReference)
+    {
+        this.logger.debug("Scanning collection [{}]", collectionReference);
+
+        try {
+            Set<DocumentReference> versions = new HashSet<>();
+            for (String version : this.collectionQueries.getVersionsAndVariants(collectionReference).getVersions()) {
+                versions.add(this.referenceResolver.resolve(version, collectionReference));
+            }
+
+            scanVersionChains(collectionReference, versions);
+            scanContents(collectionReference, versions);
+            scanLibraryReferences(versions);
+            scanDuplicateObjects(collectionReference);
+        } catch (QueryException | XWikiException e) {
+            this.logger.error("Failed to scan collection [{}]. Root cause: [{}]", collectionReference,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private void scanVersionChains(DocumentReference collectionReference, Set<DocumentReference> versions)
+        throws QueryException, XWikiException
+    {
+        Map<DocumentReference, DocumentReference> precedingVersions = new LinkedHashMap<>();
+        for (DocumentReference version : versions) {
+            precedingVersions.put(version, null);
+        }
+
+        for (Map.Entry<DocumentReference, String> precedingVersion : this.collectionQueries
+            .getPrecedingVersions(collectionReference).entrySet()) {
+            DocumentReference versionReference = precedingVersion.getKey();
+            if (StringUtils.isNotBlank(precedingVersion.getValue())) {
+                DocumentReference precedingVersionReference =
+                    this.referenceResolver.resolve(precedingVersion.getValue(), versionReference);
+                if (versions.contains(precedingVersionReference)) {
+                    precedingVersions.put(versionReference, precedingVersionReference);
+                } else {
+                    boolean repaired = isRepair() && repair(versionReference, document -> {
+                        BaseObject versionObject = document.getXObject(BookVersionsConstants.VERSION_CLASS_REFERENCE);
+                        versionObject.setStringValue(BookVersionsConstants.VERSION_PROP_PRECEDINGVERSION, "");
+                    });
+                    addIssue(Type.BROKEN_PRECEDING_VERSION, versionReference, String.format(
+                        "The preceding version [%s] is not a version of the collection", precedingVersionReference),
+                        repaired);
+                }
+            }
+        }
+
+        // Cycles are only reported, since there's no way to tell which link is wrong
+        VersionGraph graph = VersionGraph.create(precedingVersions);
+        for (DocumentReference version : versions) {
+            try {
+                graph.getInheritanceChain(version, Integer.MAX_VALUE);
+            } catch (VersionInheritanceException e) {
+                List<DocumentReference> chain = e.getChain();
+                // Report the cycle for the versions which are part of it, not for the ones inheriting from it
+                if (version.equals(chain.get(chain.size() - 1))) {
+                    addIssue(Type.VERSION_CYCLE, version,
+                        String.format("The version inherits from itself through %s", chain), false);
+                }
+            }
+        }
+    }
+
+    private void scanContents(DocumentReference collectionReference, Set<DocumentReference> versions)
+        throws QueryException, XWikiException
+    {
+        BookVersionsManager manager = this.bookVersionsManagerProvider.get();
+        Set<String> versionNames = new HashSet<>();
+        for (DocumentReference version : versions) {
+            versionNames.add(manager.getVersionName(version));
+        }
+        Set<DocumentReference> pages = new HashSet<>(this.collectionQueries.getDocuments(collectionReference,
+            BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE));
+
+        // Orphaned contents are only reported, since repairing them would mean deleting content
+        Set<DocumentReference> contents = new HashSet<>(this.collectionQueries.getDocuments(collectionReference,
+            BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE));
+        for (DocumentReference content : contents) {
+            if (!pages.contains(getPageReference(content))) {
+                addIssue(Type.ORPHANED_CONTENT, content, "The versioned content is not below a book page", false);
+            } else if (!versionNames.contains(content.getName())) {
+                addIssue(Type.ORPHANED_CONTENT, content,
+                    "The versioned content is not named after a version of the collection", false);
+            }
+        }
+
+        for (DocumentReference document : this.collectionQueries.getNonPageDocuments(collectionReference)) {
+            if (!contents.contains(document) && versionNames.contains(document.getName())
+                && pages.contains(getPageReference(document))) {
+                boolean repaired = isRepair() && repair(document, xdocument -> xdocument.newXObject(
+                    BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE, this.contextProvider.get()));
+                addIssue(Type.MISSING_CONTENT_OBJECT, document,
+                    "The document is named after a version but is not a versioned content", repaired);
+            }
+        }
+
+        // The contents left in the versioned pages are only reported, since the version they were written for is not
+        // known anymore
+        Set<DocumentReference> unversionedPages =
+            new HashSet<>(this.collectionQueries.getUnversionedPages(collectionReference));
+        for (DocumentReference page : this.collectionQueries.getPagesWithContent(collectionReference)) {
+            if (!unversionedPages.contains(page) && !this.versionedContentCreator.isPending(page)) {
+                addIssue(Type.UNMOVED_CONTENT, page,
+                    "The versioned page holds content which was not moved to a versioned content", false);
+            }
+        }
+    }
+
+    private void scanLibraryReferences(Set<DocumentReference> versions) throws QueryException, XWikiException
+    {
+        BookVersionsManager manager = this.bookVersionsManagerProvider.get();
+        XWikiContext xcontext = this.contextProvider.get();
+
+        // Broken library references are only reported, since the library may just not be imported yet
+        for (DocumentReference version : versions) {
+            XWikiDocument versionDocument = xcontext.getWiki().getDocument(version, xcontext);
+            for (BaseObject libraryObject : versionDocument
+                .getXObjects(BookVersionsConstants.BOOKLIBRARYREFERENCE_CLASS_REFERENCE)) {
+                if (libraryObject != null) {
+                    DocumentReference library =
+                        resolve(libraryObject, BookVersionsConstants.BOOKLIBRARYREFERENCE_PROP_LIBRARY, version);
+                    DocumentReference libraryVersion =
+                        resolve(libraryObject, BookVersionsConstants.BOOKLIBRARYREFERENCE_PROP_LIBRARYVERSION, version);
+                    if (library == null || libraryVersion == null || !manager.isLibrary(library)
+                        || !manager.isFromLibrary(library, libraryVersion)) {
+                        addIssue(Type.BROKEN_LIBRARY_REFERENCE, version, String.format(
+                            "The library version [%s] of library [%s] doesn't exist", libraryVersion, library), false);
+                    }
+                }
+            }
+        }
+    }
+
+    private void scanDuplicateObjects(DocumentReference collectionReference) throws QueryException, XWikiException
+    {
+        for (Map.Entry<DocumentReference, List<String>> duplicates : this.collectionQueries
+            .getDuplicateObjects(collectionReference, SINGLE_OBJECT_CLASSES).entrySet()) {
+            DocumentReference documentReference = duplicates.getKey();
+            // Keep the first object of each class, the one read by the book versions code
+            boolean repaired = isRepair() && repair(documentReference, document -> {
+                for (String className : duplicates.getValue()) {
+                    DocumentReference classReference = this.referenceResolver.resolve(className, documentReference);
+                    List<BaseObject> objects = new ArrayList<>(document.getXObjects(classReference));
+                    BaseObject first = document.getXObject(classReference);
+                    for (BaseObject object : objects) {
+                        if (object != null && object != first) {
+                            document.removeXObject(object);
+                        }
+                    }
+                }
+            });
+            addIssue(Type.DUPLICATE_OBJECT, documentReference,
+                String.format("The document holds several objects of the classes %s", duplicates.getValue()),
+                repaired);
+        }
+    }
+
+    private DocumentReference getPageReference(DocumentReference documentReference)
+    {
+        return new DocumentReference(XWiki.DEFAULT_SPACE_HOMEPAGE, documentReference.getLastSpaceReference());
+    }
+
+    private DocumentReference resolve(BaseObject object, String property, DocumentReference baseReference)
+    {
+        String value = object.getStringValue(property);
+
+        return StringUtils.isNotBlank(value) ? this.referenceResolver.resolve(value, baseReference) : null;
+    }
+
+    private boolean isRepair()
+    {
+        return this.request.isRepair();
+    }
+
+    private void addIssue(Type type, DocumentReference documentReference, String details, boolean repaired)
+    {
+        ConsistencyIssue issue = new ConsistencyIssue(type, documentReference, details, repaired);
+        this.status.addIssue(issue);
+        this.logger.warn("{}", issue);
+    }
+
+    /**
+     * Apply a repair to a document and save it.
+     *
+     * @return true if the document has been repaired
+     */
+    private boolean repair(DocumentReference documentReference, Repair repair)
+    {
+        XWikiContext xcontext = this.contextProvider.get();
+
+        try {
+            XWikiDocument document = xcontext.getWiki().getDocument(documentReference, xcontext).clone();
+            repair.apply(document);
+            xcontext.getWiki().saveDocument(document, REPAIR_COMMENT, true, xcontext);
+
+            return true;
+        } catch (XWikiException e) {
+            this.logger.error("Failed to repair [{}]. Root cause: [{}]", documentReference,
+                ExceptionUtils.getRootCauseMessage(e));
+
+            return false;
+        }
+    }
+
+    /**
+     * A repair applied to a document before saving it.
+     */
+    @FunctionalInterface
+    private interface Repair
+    {
+        void apply(XWikiDocument document) throws XWikiException;
+    }
+}
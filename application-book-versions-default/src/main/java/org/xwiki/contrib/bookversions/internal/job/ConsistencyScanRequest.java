@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal.job;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.xwiki.job.AbstractRequest;
+import org.xwiki.job.Request;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The request of the {@link ConsistencyScanJob}.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public class ConsistencyScanRequest extends AbstractRequest
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final String PROPERTY_WIKI = "wiki";
+
+    private static final String PROPERTY_REPAIR = "repair";
+
+    private static final String PROPERTY_USER = "user";
+
+    /**
+     * @param wiki the wiki to scan
+     * @param repair true if the inconsistencies which can be repaired safely should be repaired
+     * @param userReference the user saving the repaired documents
+     */
+    public ConsistencyScanRequest(String wiki, boolean repair, DocumentReference userReference)
+    {
+        setId(getId(wiki));
+        setProperty(PROPERTY_WIKI, wiki);
+        setProperty(PROPERTY_REPAIR, repair);
+        setProperty(PROPERTY_USER, userReference);
+    }
+
+    /**
+     * @param request the request to copy
+     */
+    public ConsistencyScanRequest(Request request)
+    {
+        super(request);
+    }
+
+    /**
+     * @param wiki the scanned wiki
+     * @return the identifier of the scan of the given wiki
+     */
+    public static List<String> getId(String wiki)
+    {
+        return Arrays.asList("bookversions", "consistency", wiki);
+    }
+
+    /**
+     * @return the wiki to scan
+     */
+    public String getWiki()
+    {
+        return getProperty(PROPERTY_WIKI);
+    }
+
+    /**
+     * @return true if the inconsistencies which can be repaired safely should be repaired
+     */
+    public boolean isRepair()
+    {
+        return getProperty(PROPERTY_REPAIR, false);
+    }
+
+    /**
+     * @return the user saving the repaired documents
+     */
+    public DocumentReference getUserReference()
+    {
+        return getProperty(PROPERTY_USER);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.internal.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.logging.LoggerManager;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * The status of the {@link ConsistencyScanJob}, holding the report of the scan. Only the first issues are kept, to
+ * bound the memory used by the scan of a large wiki, but all of them are counted.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public class ConsistencyScanStatus extends DefaultJobStatus<ConsistencyScanRequest>
+{
+    private static final int MAX_ISSUES = 1000;
+
+    private final List<ConsistencyIssue> issues = new ArrayList<>();
+
+    private final Map<ConsistencyIssue.Type, Integer> issueCounts = new EnumMap<>(ConsistencyIssue.Type.class);
+
+    private int scannedCollections;
+
+    /**
+     * @param request the request of the job
+     * @param parentJobStatus the status of the parent job, if any
+     * @param observationManager the observation manager
+     * @param loggerManager the logger manager
+     */
+    public ConsistencyScanStatus(ConsistencyScanRequest request, JobStatus parentJobStatus,
+        ObservationManager observationManager, LoggerManager loggerManager)
+    {
+        super(ConsistencyScanJob.JOBTYPE, request, parentJobStatus, observationManager, loggerManager);
+    }
+
+    /**
+     * @param issue an issue found by the scan
+     */
+    public synchronized void addIssue(ConsistencyIssue issue)
+    {
+        if (this.issues.size() < MAX_ISSUES) {
+            this.issues.add(issue);
+        }
+        this.issueCounts.merge(issue.getType(), 1, Integer::sum);
+    }
+
+    /**
+     * @return the first issues found by the scan
+     */
+    public synchronized List<ConsistencyIssue> getIssues()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(this.issues));
+    }
+
+    /**
+     * @return the number of issues found by the scan, for each kind of issue
+     */
+    public synchronized Map<ConsistencyIssue.Type, Integer> getIssueCounts()
+    {
+        return Collections.unmodifiableMap(new EnumMap<>(this.issueCounts));
+    }
+
+    /**
+     * Count a scanned collection.
+     */
+    public synchronized void incrementScannedCollections()
+    {
+        this.scannedCollections++;
+    }
+
+    /**
+     * @return the number of collections scanned so far
+     */
+    public synchronized int getScannedCollections()
+    {
+        return this.scannedCollections;
+    }
+}
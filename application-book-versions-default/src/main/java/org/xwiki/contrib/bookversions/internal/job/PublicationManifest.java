@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal.job;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The manifest of a publication, associating each published page to the hash of everything its published content was
+ * computed from. Comparing the hashes of a new publication with the manifest of the previous one tells which pages
+ * changed and which pages disappeared. The manifest can be updated from several threads.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public class PublicationManifest
+{
+    /**
+     * The hash recorded for a page which failed to be published: it never matches, so that the page is published
+     * again, but it keeps the page from being deleted.
+     */
+    private static final String FAILED = "";
+
+    private final Map<String, String> hashes = new ConcurrentHashMap<>();
+
+    /**
+     * @param target the local serialized reference of a published page
+     * @return the hash recorded for the given page, or {@code null} if the page is not part of the manifest
+     */
+    public String getHash(String target)
+    {
+        return this.hashes.get(target);
+    }
+
+    /**
+     * @param target the local serialized reference of a published page
+     * @param hash the hash of the published content of the page
+     */
+    public void setHash(String target, String hash)
+    {
+        this.hashes.put(target, hash);
+    }
+
+    /**
+     * @param target the local serialized reference of a published page
+     * @param hash the hash of the content the page would be published from
+     * @return true if the page was published from the same content, and doesn't need to be published again; a page
+     *     which failed to be published is never unchanged
+     */
+    public boolean isUnchanged(String target, String hash)
+    {
+        return !FAILED.equals(hash) && hash.equals(this.hashes.get(target));
+    }
+
+    /**
+     * Record a page which failed to be published.
+     *
+     * @param target the local serialized reference of the page
+     */
+    public void setFailed(String target)
+    {
+        this.hashes.put(target, FAILED);
+    }
+
+    /**
+     * @param manifest the manifest of a newer publication
+     * @return the local serialized references of the pages of this manifest which are not part of the given one
+     */
+    public Set<String> getRemovedTargets(PublicationManifest manifest)
+    {
+        Set<String> removedTargets = new LinkedHashSet<>();
+        for (String target : this.hashes.keySet()) {
+            if (manifest.getHash(target) == null) {
+                removedTargets.add(target);
+            }
+        }
+
+        return removedTargets;
+    }
+
+    /**
+     * @param inputStream the stream to read the manifest from, as written by {@link #toByteArray()}
+     * @throws IOException if the manifest can't be read
+     */
+    public void load(InputStream inputStream) throws IOException
+    {
+        Properties properties = new Properties();
+        properties.load(inputStream);
+        for (String target : properties.stringPropertyNames()) {
+            this.hashes.put(target, properties.getProperty(target));
+        }
+    }
+
+    /**
+     * @return the serialized manifest
+     * @throws IOException if the manifest can't be serialized
+     */
+    public byte[] toByteArray() throws IOException
+    {
+        Properties properties = new Properties();
+        properties.putAll(this.hashes);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        properties.store(outputStream, null);
+
+        return outputStream.toByteArray();
+    }
+}
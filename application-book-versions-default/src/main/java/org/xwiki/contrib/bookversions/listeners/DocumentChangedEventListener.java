@@ -0,0 +1,250 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xwiki.contrib.bookversions.listeners;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.bookversions.BookVersionsManager;
+import org.xwiki.contrib.bookversions.internal.BookVersionsConstants;
+import org.xwiki.contrib.bookversions.internal.CollectionReferenceCache;
+import org.xwiki.contrib.bookversions.internal.NavigationTreeExclusions;
+import org.xwiki.contrib.bookversions.internal.RequestMemo;
+import org.xwiki.contrib.bookversions.internal.ResolvedContentIndex;
+import org.xwiki.contrib.bookversions.internal.VariantUsageIndex;
+import org.xwiki.contrib.bookversions.internal.VersionGraphCache;
+import org.xwiki.contrib.bookversions.internal.VersionedContentIndex;
+import org.xwiki.contrib.bookversions.internal.VersionsAndVariantsCache;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.query.QueryException;
+
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keep the book versions caches up to date when documents are created, updated or deleted. Remote events are handled
+ * too, so that all the members of a cluster forget the same entries.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Named(DocumentChangedEventListener.NAME)
+@Singleton
+public class DocumentChangedEventListener extends AbstractEventListener
+{
+    static final String NAME = "org.xwiki.contrib.bookversions.listeners.DocumentChangedEventListener";
+
+    private static final List<Event> EVENT_LIST =
+        List.of(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+
+    @Inject
+    private CollectionReferenceCache collectionReferenceCache;
+
+    @Inject
+    private VersionGraphCache versionGraphCache;
+
+    @Inject
+    private NavigationTreeExclusions navigationTreeExclusions;
+
+    @Inject
+    private VersionedContentIndex versionedContentIndex;
+
+    @Inject
+    private VersionsAndVariantsCache versionsAndVariantsCache;
+
+    @Inject
+    private ResolvedContentIndex resolvedContentIndex;
+
+    @Inject
+    private VariantUsageIndex variantUsageIndex;
+
+    @Inject
+    private RequestMemo requestMemo;
+
+    @Inject
+    private Provider<BookVersionsManager> bookVersionsManagerProvider;
+
+    @Inject
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Constructor.
+     */
+    public DocumentChangedEventListener()
+    {
+        super(NAME, EVENT_LIST);
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // The lookups remembered by the current request may not hold anymore
+        this.requestMemo.clear();
+
+        XWikiDocument document = (XWikiDocument) source;
+        XWikiDocument originalDocument = document.getOriginalDocument();
+
+        // Any document of the wiki may use a variant
+        this.variantUsageIndex.update(document);
+
+        if (hasXObjectChanged(document, originalDocument, BookVersionsConstants.BOOK_CLASS_REFERENCE)
+            || hasXObjectChanged(document, originalDocument, BookVersionsConstants.LIBRARY_CLASS_REFERENCE)) {
+            this.collectionReferenceCache.remove(document.getDocumentReference());
+        }
+
+        boolean isVersionChange = hasXObject(document, BookVersionsConstants.VERSION_CLASS_REFERENCE)
+            || hasXObject(originalDocument, BookVersionsConstants.VERSION_CLASS_REFERENCE);
+        boolean isVariantChange = hasXObject(document, BookVersionsConstants.VARIANT_CLASS_REFERENCE)
+            || hasXObject(originalDocument, BookVersionsConstants.VARIANT_CLASS_REFERENCE);
+        // Any document created or deleted in a collection changes its structure, while only the changes of the page
+        // or versioned content definitions matter for an update.
+        boolean isStructureChange = !(event instanceof DocumentUpdatedEvent)
+            || hasPageChanged(document, originalDocument) || hasXObjectChanged(document, originalDocument,
+                BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE);
+        // The pages visible for a variant depend on the variants lists of the pages and contents
+        boolean isVariantsListChange = !getVariantsList(document).equals(getVariantsList(originalDocument));
+
+        if (isVersionChange || isVariantChange || isStructureChange || isVariantsListChange) {
+            updateCollectionCaches(document, isVersionChange, isVariantChange, isStructureChange,
+                isVariantsListChange);
+        }
+    }
+
+    private void updateCollectionCaches(XWikiDocument document, boolean isVersionChange, boolean isVariantChange,
+        boolean isStructureChange, boolean isVariantsListChange)
+    {
+        DocumentReference documentReference = document.getDocumentReference();
+
+        try {
+            DocumentReference collectionReference =
+                this.bookVersionsManagerProvider.get().getVersionedCollectionReference(documentReference);
+
+            if (collectionReference != null) {
+                if (isVersionChange || isVariantChange) {
+                    this.versionsAndVariantsCache.remove(collectionReference);
+                }
+                if (isVersionChange) {
+                    updateVersionGraph(collectionReference, document);
+                }
+                if (isStructureChange) {
+                    updateVersionedContentIndex(collectionReference, document);
+                }
+                if (isStructureChange || isVariantsListChange) {
+                    this.navigationTreeExclusions.invalidate(collectionReference);
+                }
+                if (isVersionChange || isStructureChange) {
+                    // The contents resolved for the versions depend on both the contents and the version chains
+                    this.resolvedContentIndex.invalidate(collectionReference);
+                }
+            }
+        } catch (XWikiException | QueryException e) {
+            this.logger.warn("Failed to get the collection of [{}], dropping all the collection caches. "
+                + "Root cause: [{}]", documentReference, ExceptionUtils.getRootCauseMessage(e));
+            this.versionsAndVariantsCache.removeAll();
+            this.versionGraphCache.removeAll();
+            this.versionedContentIndex.removeAll();
+            this.navigationTreeExclusions.invalidateAll();
+            this.resolvedContentIndex.invalidateAll();
+        }
+    }
+
+    private void updateVersionedContentIndex(DocumentReference collectionReference, XWikiDocument document)
+    {
+        boolean isContent = hasXObject(document, BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE);
+        boolean wasContent =
+            hasXObject(document.getOriginalDocument(), BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE);
+
+        if (isContent && !wasContent) {
+            this.versionedContentIndex.add(collectionReference, document.getDocumentReference());
+        } else if (!isContent && wasContent) {
+            this.versionedContentIndex.remove(collectionReference, document.getDocumentReference());
+        }
+    }
+
+    private void updateVersionGraph(DocumentReference collectionReference, XWikiDocument document)
+    {
+        DocumentReference versionReference = document.getDocumentReference();
+        BaseObject versionObject = document.getXObject(BookVersionsConstants.VERSION_CLASS_REFERENCE);
+
+        if (versionObject != null) {
+            String precedingVersion = versionObject.getStringValue(BookVersionsConstants.VERSION_PROP_PRECEDINGVERSION);
+            this.versionGraphCache.setVersion(collectionReference, versionReference,
+                StringUtils.isNotBlank(precedingVersion)
+                    ? this.referenceResolver.resolve(precedingVersion, versionReference) : null);
+        } else {
+            this.versionGraphCache.removeVersion(collectionReference, versionReference);
+        }
+    }
+
+    private boolean hasPageChanged(XWikiDocument document, XWikiDocument originalDocument)
+    {
+        return hasXObjectChanged(document, originalDocument, BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE)
+            || isUnversionedPage(document) != isUnversionedPage(originalDocument);
+    }
+
+    private boolean isUnversionedPage(XWikiDocument document)
+    {
+        BaseObject pageObject =
+            document != null ? document.getXObject(BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE) : null;
+
+        return pageObject != null && pageObject.getIntValue(BookVersionsConstants.BOOKPAGE_PROP_UNVERSIONED) == 1;
+    }
+
+    private List<?> getVariantsList(XWikiDocument document)
+    {
+        BaseObject variantsObject =
+            document != null ? document.getXObject(BookVersionsConstants.VARIANTSLIST_CLASS_REFERENCE) : null;
+
+        return variantsObject != null
+            ? variantsObject.getListValue(BookVersionsConstants.VARIANTSLIST_PROP_VARIANTS) : List.of();
+    }
+
+    private boolean hasXObjectChanged(XWikiDocument document, XWikiDocument originalDocument,
+        EntityReference classReference)
+    {
+        return hasXObject(document, classReference) != hasXObject(originalDocument, classReference);
+    }
+
+    private boolean hasXObject(XWikiDocument document, EntityReference classReference)
+    {
+        return document != null && document.getXObject(classReference) != null;
+    }
+}
@@ -27,22 +27,25 @@ import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.slf4j.Logger;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
 import org.xwiki.bridge.event.DocumentCreatingEvent;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.bookversions.BookVersionsManager;
 import org.xwiki.contrib.bookversions.internal.BookVersionsConstants;
+import org.xwiki.contrib.bookversions.internal.VersionedContentCreator;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.observation.event.AbstractLocalEventListener;
 import org.xwiki.observation.event.Event;
 import org.xwiki.query.QueryException;
 
-import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 
 /**
  * Creating the versioned content page when a new versioned page is created in a book. Using the active version (the
- * version stored in session, then fallback on the most recent version.
+ * version stored in session, then fallback on the most recent version. In import mode, the versioned content is
+ * created later, in the background, so it's only scheduled once the page is saved: the background creation reads the
+ * stored page.
  * 
  * @version $Id$
  * @since 0.1
@@ -55,13 +58,13 @@ public class DocumentCreatingEventListener extends AbstractLocalEventListener
 
     static final String NAME = "org.xwiki.contrib.bookversions.listeners.DocumentUpdatingEventListener";
 
-    private static final List<Event> EVENT_LIST = List.of(new DocumentCreatingEvent());
+    private static final List<Event> EVENT_LIST = List.of(new DocumentCreatingEvent(), new DocumentCreatedEvent());
 
     @Inject
     private Provider<BookVersionsManager> bookVersionsManagerProvider;
 
     @Inject
-    private Provider<XWikiContext> xcontextProvider;
+    private Provider<VersionedContentCreator> versionedContentCreatorProvider;
 
     @Inject
     private Logger logger;
@@ -77,27 +80,36 @@ public class DocumentCreatingEventListener extends AbstractLocalEventListener
     @Override
     public void processLocalEvent(Event event, Object source, Object data)
     {
-        XWikiContext xcontext = xcontextProvider.get();
-
         XWikiDocument updatedXDoc = (XWikiDocument) source;
-        updatedXDoc.getOriginalDocument();
+
+        // Only the book pages can be versioned: reject the other documents on their objects, before any lookup, so
+        // that this listener costs nothing to the documents created outside of the books.
+        if (updatedXDoc.getXObject(BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE) == null) {
+            return;
+        }
+
+        // In import mode the content is moved once the page is stored, otherwise while the page is being created.
+        VersionedContentCreator versionedContentCreator = versionedContentCreatorProvider.get();
+        boolean importMode = versionedContentCreator.isImportMode();
+        if (importMode != (event instanceof DocumentCreatedEvent)) {
+            return;
+        }
+
         BookVersionsManager bookVersionsManager = bookVersionsManagerProvider.get();
 
         try {
-            if (bookVersionsManager.isPage(updatedXDoc) && bookVersionsManager.isVersionedPage(updatedXDoc)) {
+            if (bookVersionsManager.isVersionedPage(updatedXDoc)) {
                 // Transfer the document's content in a new child page storing its versioned content.
                 DocumentReference versionDocumentReference =
                     bookVersionsManager.getVersionedContentReference(updatedXDoc);
 
                 if (versionDocumentReference != null) {
-                    XWikiDocument versionedContentDocument =
-                        xcontext.getWiki().getDocument(versionDocumentReference, xcontext);
-                    versionedContentDocument.newXObject(BookVersionsConstants.BOOKVERSIONEDCONTENT_CLASS_REFERENCE,
-                        xcontext);
-                    versionedContentDocument.setContent(updatedXDoc.getContent());
-                    updatedXDoc.setContent("");
-
-                    xcontext.getWiki().saveDocument(versionedContentDocument, xcontext);
+                    if (importMode) {
+                        versionedContentCreator.schedule(updatedXDoc.getDocumentReference(),
+                            versionDocumentReference);
+                    } else {
+                        versionedContentCreator.create(updatedXDoc, versionDocumentReference);
+                    }
                 }
             }
         } catch (XWikiException | QueryException e) {
@@ -0,0 +1,169 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.macro;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.bookversions.BookVersionsManager;
+import org.xwiki.contrib.bookversions.internal.BookVersionsConstants;
+import org.xwiki.contrib.bookversions.internal.VariantMacroFilter;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.QueryException;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.macro.AbstractMacro;
+import org.xwiki.rendering.macro.MacroContentParser;
+import org.xwiki.rendering.macro.MacroExecutionException;
+import org.xwiki.rendering.macro.descriptor.DefaultContentDescriptor;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Displays its content only when the variant it names is the variant selected for the collection (book or library) of
+ * the current document. The selected variant is resolved once per request and the content of the macro is parsed
+ * once, whatever the number of variant macros of the document; the macros the content holds are executed by the
+ * macro transformation, like any other macro of the document.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Named(BookVersionsConstants.VARIANT_MACRO_ID)
+@Singleton
+public class VariantMacro extends AbstractMacro<VariantMacroParameters> implements Disposable
+{
+    private static final String DESCRIPTION = "Display content only for the selected variant.";
+
+    private static final String CONTENT_DESCRIPTION = "The content to display for the variant.";
+
+    private static final String CACHE_ID = "bookversions.variantMacroContents";
+
+    private static final int CACHE_SIZE = 1000;
+
+    @Inject
+    private Provider<BookVersionsManager> bookVersionsManagerProvider;
+
+    @Inject
+    private DocumentAccessBridge documentAccessBridge;
+
+    @Inject
+    private VariantMacroFilter variantMacroFilter;
+
+    @Inject
+    private MacroContentParser contentParser;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    /**
+     * The parsed contents of the macros, by syntax, inline mode and content.
+     */
+    private Cache<XDOM> cache;
+
+    /**
+     * Create and initialize the descriptor of the macro.
+     */
+    public VariantMacro()
+    {
+        super("Variant", DESCRIPTION, new DefaultContentDescriptor(CONTENT_DESCRIPTION, false, Block.LIST_BLOCK_TYPE),
+            VariantMacroParameters.class);
+
+        setDefaultCategories(Collections.singleton(DEFAULT_CATEGORY_CONTENT));
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        super.initialize();
+
+        try {
+            this.cache = this.cacheManager.createNewCache(new LRUCacheConfiguration(CACHE_ID, CACHE_SIZE));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the variant macro contents cache.", e);
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.cache.dispose();
+    }
+
+    @Override
+    public boolean supportsInlineMode()
+    {
+        return true;
+    }
+
+    @Override
+    public List<Block> execute(VariantMacroParameters parameters, String content, MacroTransformationContext context)
+        throws MacroExecutionException
+    {
+        if (StringUtils.isEmpty(content) || !isSelected(parameters.getVariantPage())) {
+            return Collections.emptyList();
+        }
+
+        String key = this.contentParser.getCurrentSyntax(context).toIdString() + (context.isInline() ? 'i' : 'b')
+            + content;
+        XDOM xdom = this.cache.get(key);
+        if (xdom == null) {
+            xdom = this.contentParser.parse(content, context, false, context.isInline());
+            this.cache.set(key, xdom);
+        }
+
+        // The blocks are modified by the transformations, so the cached content is never returned as is
+        return xdom.clone().getChildren();
+    }
+
+    private boolean isSelected(String variantPage) throws MacroExecutionException
+    {
+        DocumentReference documentReference = this.documentAccessBridge.getCurrentDocumentReference();
+
+        try {
+            // The selected variant is remembered for the request, so it's only resolved once per document
+            String selectedVariant = this.bookVersionsManagerProvider.get().getSelectedVariant(documentReference);
+
+            return selectedVariant != null
+                && selectedVariant.equals(this.variantMacroFilter.getVariant(variantPage, documentReference));
+        } catch (XWikiException | QueryException e) {
+            throw new MacroExecutionException(
+                String.format("Failed to get the variant selected for [%s]", documentReference), e);
+        }
+    }
+}
@@ -20,21 +20,52 @@
 
 package org.xwiki.contrib.bookversions.script;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.bookversions.BookVersionsManager;
+import org.xwiki.contrib.bookversions.DocumentClassification;
+import org.xwiki.contrib.bookversions.PageContext;
+import org.xwiki.contrib.bookversions.internal.BookVersionsConstants;
+import org.xwiki.contrib.bookversions.internal.ContentCreationStatus;
+import org.xwiki.contrib.bookversions.internal.NavigationTreeExclusions;
+import org.xwiki.contrib.bookversions.internal.RequestMemo;
+import org.xwiki.contrib.bookversions.internal.VariantUsageIndex;
+import org.xwiki.contrib.bookversions.internal.VersionedContentCreator;
+import org.xwiki.contrib.bookversions.internal.job.BookPublicationRequest;
+import org.xwiki.contrib.bookversions.internal.job.BookPublisher;
+import org.xwiki.contrib.bookversions.internal.job.ConsistencyScanJob;
+import org.xwiki.contrib.bookversions.internal.job.ConsistencyScanRequest;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobException;
+import org.xwiki.job.JobExecutor;
+import org.xwiki.job.JobStatusStore;
+import org.xwiki.job.event.status.JobStatus;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.query.QueryException;
 import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.AccessDeniedException;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
 
+import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
 
 /**
  * Book versions script service.
@@ -55,6 +86,33 @@ public class BookVersionsScriptService implements ScriptService
     @Inject
     private Provider<BookVersionsManager> bookVersionsManagerProvider;
 
+    @Inject
+    private Provider<NavigationTreeExclusions> navigationTreeExclusionsProvider;
+
+    @Inject
+    private Provider<VersionedContentCreator> versionedContentCreatorProvider;
+
+    @Inject
+    private Provider<VariantUsageIndex> variantUsageIndexProvider;
+
+    @Inject
+    private Provider<RequestMemo> requestMemoProvider;
+
+    @Inject
+    private Provider<JobExecutor> jobExecutorProvider;
+
+    @Inject
+    private Provider<JobStatusStore> jobStatusStoreProvider;
+
+    @Inject
+    private ContextualAuthorizationManager authorization;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private DocumentReferenceResolver<String> referenceResolver;
+
     /**
      * Check if the given reference is a book.
      * 
@@ -324,7 +382,9 @@ public class BookVersionsScriptService implements ScriptService
     }
 
     /**
-     * Check if the page has content corresponding to the given version.
+     * Check if the page has content corresponding to the given version. The content is the document named after the
+     * version below the page, holding a versioned content object: a document without that object is not a content
+     * (the consistency scan reports it, and adds the object when repairing).
      * 
      * @param documentReference The page reference.
      * @param version The version id.
@@ -398,6 +458,354 @@ public class BookVersionsScriptService implements ScriptService
         return bookVersionsManagerProvider.get().getInheritedContentReference(pageReference, versionReference);
     }
 
+    /**
+     * Get the reference of the content to be displayed for a versioned page, in one pass: the content of the selected
+     * version (or of the most recent version if none is selected), or else the content inherited from the closest
+     * preceding version.
+     *
+     * @param pageReference the reference of the versioned page
+     * @return the reference of the content to be displayed. Null if the reference is not a versioned page, or if
+     *         there's no versioned content for the page, neither to inherit.
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    public DocumentReference resolveVersionedContentReference(DocumentReference pageReference)
+        throws QueryException, XWikiException
+    {
+        return bookVersionsManagerProvider.get().resolveVersionedContentReference(pageReference);
+    }
+
+    /**
+     * Get, in one call, what the book versions UI needs to know about a document: its kind, its collection, the
+     * selected version and variant, the versions and variants of the collection and the content to display. The
+     * context is computed once per request.
+     *
+     * @param documentReference the document reference
+     * @return the context of the document, or null if the reference is null
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    public PageContext getPageContext(DocumentReference documentReference) throws QueryException, XWikiException
+    {
+        return bookVersionsManagerProvider.get().getPageContext(documentReference);
+    }
+
+    /**
+     * Get the book versions types (book, library, page, versioned page, versioned content, version, variant) of many
+     * documents at once, without loading the documents. The following checks of these documents, like
+     * {@link #isPage(DocumentReference)}, are then answered without loading them during the current request.
+     *
+     * @param documentReferences the references of the documents to classify
+     * @return the types of each given document the current user can view, in the same order
+     * @throws QueryException
+     * @since 1.0
+     */
+    public Map<DocumentReference, DocumentClassification> classify(Collection<DocumentReference> documentReferences)
+        throws QueryException
+    {
+        Map<DocumentReference, DocumentClassification> classifications = new LinkedHashMap<>();
+        for (Map.Entry<DocumentReference, DocumentClassification> classification : bookVersionsManagerProvider.get()
+            .classify(documentReferences).entrySet()) {
+            if (authorization.hasAccess(Right.VIEW, classification.getKey())) {
+                classifications.put(classification.getKey(), classification.getValue());
+            }
+        }
+
+        return classifications;
+    }
+
+    /**
+     * Get the number of book versions lookups answered from the results remembered during the current request
+     * ({@code hits}), and the number of lookups which had to be computed ({@code misses}).
+     *
+     * @return the hit and miss counters of the current request
+     * @since 1.0
+     */
+    public Map<String, Long> getRequestMemoStatistics()
+    {
+        return requestMemoProvider.get().getStatistics();
+    }
+
+    /**
+     * Get the reference of the content to be displayed for all the pages of a collection, be it corresponding to the
+     * required version, or inherited from another version.
+     *
+     * @param collectionReference the reference of the collection (book / library), or of one of its pages
+     * @param versionReference the reference of the version from which to get the content from, or inherit
+     * @return the reference of the content to be displayed, for each page of the collection. Versioned pages having no
+     *         content for the version, neither to inherit, are not part of the result. Unversioned pages are associated
+     *         to themselves. Only the pages and contents the current user can view are part of the result.
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    public Map<DocumentReference, DocumentReference> getInheritedContentReferences(
+        DocumentReference collectionReference, DocumentReference versionReference)
+        throws QueryException, XWikiException
+    {
+        Map<DocumentReference, DocumentReference> contentReferences = new LinkedHashMap<>();
+        for (Map.Entry<DocumentReference, DocumentReference> contentReference : bookVersionsManagerProvider.get()
+            .getInheritedContentReferences(collectionReference, versionReference).entrySet()) {
+            if (authorization.hasAccess(Right.VIEW, contentReference.getKey())
+                && authorization.hasAccess(Right.VIEW, contentReference.getValue())) {
+                contentReferences.put(contentReference.getKey(), contentReference.getValue());
+            }
+        }
+
+        return contentReferences;
+    }
+
+    /**
+     * Get the nodes to exclude from the navigation tree of a collection, for the given version: the documents which
+     * are not book pages, and the versioned pages having no content for the version.
+     *
+     * @param documentReference the reference of the collection (book / library), or of one of its pages
+     * @param version the serialized reference of the selected version, if any
+     * @return the comma separated list of the tree nodes to exclude
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    public String getNavigationExclusions(DocumentReference documentReference, String version)
+        throws QueryException, XWikiException
+    {
+        return getNavigationExclusions(documentReference, version, null);
+    }
+
+    /**
+     * Get the nodes to exclude from the navigation tree of a collection, for the given version and variant: the
+     * documents which are not book pages, the versioned pages having no content for the version, and the pages which
+     * are not associated to the variant.
+     *
+     * @param documentReference the reference of the collection (book / library), or of one of its pages
+     * @param version the serialized reference of the selected version, if any
+     * @param variant the serialized reference of the selected variant, if any
+     * @return the comma separated list of the tree nodes to exclude
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    public String getNavigationExclusions(DocumentReference documentReference, String version, String variant)
+        throws QueryException, XWikiException
+    {
+        DocumentReference collectionReference =
+            bookVersionsManagerProvider.get().getVersionedCollectionReference(documentReference);
+        if (collectionReference == null) {
+            return "";
+        }
+
+        return navigationTreeExclusionsProvider.get().getExclusions(collectionReference, version, variant);
+    }
+
+    /**
+     * Get the pages of a collection to be displayed to the readers of a version and variant, among the pages the
+     * current user can view.
+     *
+     * @param collectionReference the reference of the collection (book / library), or of one of its pages
+     * @param versionReference the reference of the selected version, if any
+     * @param variantReference the reference of the selected variant, if any
+     * @return the visible pages of the collection, in the order of the collection
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    public Set<DocumentReference> getVisiblePages(DocumentReference collectionReference,
+        DocumentReference versionReference, DocumentReference variantReference) throws QueryException, XWikiException
+    {
+        return new LinkedHashSet<>(filterViewable(new ArrayList<>(bookVersionsManagerProvider.get()
+            .getVisiblePages(collectionReference, versionReference, variantReference))));
+    }
+
+    /**
+     * Get the pages associated to a variant through their variants list, among the pages the current user can view.
+     *
+     * @param variantReference the variant reference
+     * @return the references of the pages associated to the variant
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    public List<DocumentReference> getVariantLinkedPages(DocumentReference variantReference)
+        throws QueryException, XWikiException
+    {
+        return filterViewable(variantUsageIndexProvider.get().getLinkedPages(variantReference));
+    }
+
+    /**
+     * Get the pages using a variant through the variant macro, among the pages the current user can view.
+     *
+     * @param variantReference the variant reference
+     * @return the references of the pages using the variant
+     * @throws QueryException
+     * @throws XWikiException
+     * @since 1.0
+     */
+    public List<DocumentReference> getVariantMacroPages(DocumentReference variantReference)
+        throws QueryException, XWikiException
+    {
+        return filterViewable(variantUsageIndexProvider.get().getMacroPages(variantReference));
+    }
+
+    private List<DocumentReference> filterViewable(List<DocumentReference> documentReferences)
+    {
+        List<DocumentReference> viewableReferences = new ArrayList<>(documentReferences.size());
+        for (DocumentReference documentReference : documentReferences) {
+            if (authorization.hasAccess(Right.VIEW, documentReference)) {
+                viewableReferences.add(documentReference);
+            }
+        }
+
+        return viewableReferences;
+    }
+
+    /**
+     * Check if the versioned contents of the new pages are created in the background, for faster imports.
+     *
+     * @return true if the import mode is enabled
+     * @since 1.0
+     */
+    public boolean isImportMode()
+    {
+        return versionedContentCreatorProvider.get().isImportMode();
+    }
+
+    /**
+     * Enable or disable the import mode, where the versioned contents of the new pages are created in the background.
+     * The import mode applies to all the wikis of the farm, so it requires administration rights on the main wiki (or
+     * programming rights).
+     *
+     * @param importMode true to enable the import mode
+     * @throws AccessDeniedException if the current user is not an administrator of the main wiki
+     * @since 1.0
+     */
+    public void setImportMode(boolean importMode) throws AccessDeniedException
+    {
+        authorization.checkAccess(Right.ADMIN, new WikiReference(contextProvider.get().getMainXWiki()));
+
+        versionedContentCreatorProvider.get().setImportMode(importMode);
+    }
+
+    /**
+     * Get the state of the background creation of the versioned contents, to follow an import.
+     *
+     * @return the state of the versioned contents creation
+     * @since 1.0
+     */
+    public ContentCreationStatus getContentCreationStatus()
+    {
+        return versionedContentCreatorProvider.get().getStatus();
+    }
+
+    /**
+     * Start the scan of the structure of the books and libraries of a wiki, reporting broken version chains, orphaned
+     * contents, broken library references and duplicate objects. Requires administration rights on the wiki.
+     *
+     * @param wiki the wiki to scan
+     * @param repair true to also repair the inconsistencies which can be repaired without losing content
+     * @return the scan job
+     * @throws AccessDeniedException if the current user is not an administrator of the wiki
+     * @throws JobException if the job can't be started
+     * @since 1.0
+     */
+    public Job startConsistencyScan(String wiki, boolean repair) throws AccessDeniedException, JobException
+    {
+        authorization.checkAccess(Right.ADMIN, new WikiReference(wiki));
+
+        return jobExecutorProvider.get().execute(ConsistencyScanJob.JOBTYPE,
+            new ConsistencyScanRequest(wiki, repair, contextProvider.get().getUserReference()));
+    }
+
+    /**
+     * Get the status of the running or last scan of the structure of the books and libraries of a wiki. The report
+     * lists documents of all the books of the wiki, so it requires administration rights on the wiki.
+     *
+     * @param wiki the scanned wiki
+     * @return the status of the scan, holding its progress and its report, or null if the wiki was never scanned
+     * @throws AccessDeniedException if the current user is not an administrator of the wiki
+     * @since 1.0
+     */
+    public JobStatus getConsistencyScanStatus(String wiki) throws AccessDeniedException
+    {
+        authorization.checkAccess(Right.ADMIN, new WikiReference(wiki));
+
+        List<String> id = ConsistencyScanRequest.getId(wiki);
+        Job job = jobExecutorProvider.get().getJob(id);
+
+        return job != null ? job.getStatus() : jobStatusStoreProvider.get().getJobStatus(id);
+    }
+
+    /**
+     * Publish a book as defined by the published book object of the given document: the version and the variant of the
+     * master book it names are published in the space of the document. The manifest of the publication is attached to
+     * the document, so that publishing again only saves the pages which changed. Requires edit rights on the document
+     * and view rights on the book.
+     *
+     * @param publicationReference the document holding the published book definition
+     * @return the publication job, or null if the document doesn't define a published book
+     * @throws AccessDeniedException if the current user can't edit the publication or view the book
+     * @throws XWikiException if the published book definition can't be read
+     * @throws JobException if the published version or variant doesn't exist, or if the job can't be started
+     * @since 1.0
+     */
+    public Job publishBook(DocumentReference publicationReference)
+        throws AccessDeniedException, XWikiException, JobException
+    {
+        authorization.checkAccess(Right.EDIT, publicationReference);
+
+        XWikiContext xcontext = contextProvider.get();
+        BaseObject publicationObject = xcontext.getWiki().getDocument(publicationReference, xcontext)
+            .getXObject(BookVersionsConstants.PUBLISHEDBOOK_CLASS_REFERENCE);
+        if (publicationObject == null) {
+            return null;
+        }
+
+        DocumentReference bookReference = referenceResolver.resolve(
+            publicationObject.getStringValue(BookVersionsConstants.PUBLISHEDBOOK_PROP_MASTERNAME),
+            publicationReference);
+        authorization.checkAccess(Right.VIEW, bookReference);
+
+        // Publishing an unknown version or variant would publish nothing, and delete the previous publication
+        BookVersionsManager bookVersionsManager = bookVersionsManagerProvider.get();
+        String versionName = publicationObject.getStringValue(BookVersionsConstants.PUBLISHEDBOOK_PROP_VERSIONNAME);
+        DocumentReference versionReference =
+            StringUtils.isNotBlank(versionName) ? bookVersionsManager.getVersionReference(bookReference, versionName)
+                : null;
+        if (versionReference == null) {
+            throw new JobException(
+                String.format("The version [%s] of book [%s] doesn't exist.", versionName, bookReference));
+        }
+        String variantName = publicationObject.getStringValue(BookVersionsConstants.PUBLISHEDBOOK_PROP_VARIANTNAME);
+        DocumentReference variantReference = null;
+        if (StringUtils.isNotBlank(variantName)) {
+            variantReference = bookVersionsManager.getVariantReference(bookReference, variantName);
+            if (variantReference == null) {
+                throw new JobException(
+                    String.format("The variant [%s] of book [%s] doesn't exist.", variantName, bookReference));
+            }
+        }
+
+        return jobExecutorProvider.get().execute(BookPublisher.JOBTYPE, new BookPublicationRequest(bookReference,
+            versionReference, variantReference, publicationReference.getLastSpaceReference(),
+            xcontext.getUserReference(), publicationReference));
+    }
+
+    /**
+     * Get the status of the running or last publication of a book in the space of the given document.
+     *
+     * @param publicationReference the document holding the published book definition
+     * @return the status of the publication, or null if the book was never published there
+     * @since 1.0
+     */
+    public JobStatus getPublicationStatus(DocumentReference publicationReference)
+    {
+        List<String> id = BookPublicationRequest.getId(publicationReference.getLastSpaceReference());
+        Job job = jobExecutorProvider.get().getJob(id);
+
+        return job != null ? job.getStatus() : jobStatusStoreProvider.get().getJobStatus(id);
+    }
+
     /**
      * Check if the given reference is a library.
      *
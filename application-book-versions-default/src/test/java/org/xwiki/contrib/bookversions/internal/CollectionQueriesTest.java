@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link CollectionQueries}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class CollectionQueriesTest
+{
+    private static final String WIKI = "wiki";
+
+    private static final DocumentReference COLLECTION_REFERENCE = new DocumentReference(WIKI, "Book", "WebHome");
+
+    private static final DocumentReference PAGE_REFERENCE =
+        new DocumentReference(WIKI, Arrays.asList("Book", "Chapter"), "WebHome");
+
+    private static final DocumentReference TERMINAL_DOCUMENT_REFERENCE = new DocumentReference(WIKI, "Book", "Notes");
+
+    @InjectMockComponents
+    private CollectionQueries collectionQueries;
+
+    @MockComponent
+    private Provider<QueryManager> queryManagerProvider;
+
+    @MockComponent
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @MockComponent
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    private final QueryManager queryManager = mock(QueryManager.class);
+
+    private final Query query = mock(Query.class);
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.queryManagerProvider.get()).thenReturn(this.queryManager);
+        when(this.queryManager.createQuery(anyString(), eq(Query.HQL))).thenReturn(this.query);
+        when(this.query.bindValue(anyString(), any())).thenReturn(this.query);
+        when(this.localSerializer.serialize(COLLECTION_REFERENCE.getLastSpaceReference())).thenReturn("Book");
+
+        when(this.referenceResolver.resolve("Book.WebHome", COLLECTION_REFERENCE)).thenReturn(COLLECTION_REFERENCE);
+        when(this.referenceResolver.resolve("Book.Chapter.WebHome", COLLECTION_REFERENCE)).thenReturn(PAGE_REFERENCE);
+        when(this.referenceResolver.resolve("Book.Notes", COLLECTION_REFERENCE))
+            .thenReturn(TERMINAL_DOCUMENT_REFERENCE);
+    }
+
+    @Test
+    void getSpacePrefix()
+    {
+        assertEquals("Book.%", this.collectionQueries.getSpacePrefix(COLLECTION_REFERENCE));
+
+        DocumentReference collectionReference = new DocumentReference(WIKI, "My_Book%/", "WebHome");
+        when(this.localSerializer.serialize(new SpaceReference(WIKI, "My_Book%/"))).thenReturn("My_Book%/");
+
+        // The like wildcards and the escape character of the space name are escaped
+        assertEquals("My/_Book/%//.%", this.collectionQueries.getSpacePrefix(collectionReference));
+    }
+
+    @Test
+    void getDocumentsOnlyKeepsTheDescendants() throws Exception
+    {
+        // The space prefix also matches the documents located directly in the collection space
+        when(this.query.<String>execute())
+            .thenReturn(Arrays.asList("Book.WebHome", "Book.Chapter.WebHome", "Book.Notes"));
+
+        assertEquals(Collections.singletonList(PAGE_REFERENCE), this.collectionQueries.getDocuments(
+            COLLECTION_REFERENCE, BookVersionsConstants.BOOKPAGE_CLASS_REFERENCE));
+        verify(this.query).bindValue("spacePrefix", "Book.%");
+    }
+
+    @Test
+    void getUnversionedPagesOnlyKeepsTheDescendants() throws Exception
+    {
+        when(this.query.<String>execute()).thenReturn(Arrays.asList("Book.Notes", "Book.Chapter.WebHome"));
+
+        assertEquals(Collections.singletonList(PAGE_REFERENCE),
+            this.collectionQueries.getUnversionedPages(COLLECTION_REFERENCE));
+    }
+
+    @Test
+    void getNonPageDocumentsKeepsTheCollectionSpace() throws Exception
+    {
+        when(this.query.<String>execute()).thenReturn(Arrays.asList("Book.WebHome", "Book.Notes"));
+
+        List<DocumentReference> documents = this.collectionQueries.getNonPageDocuments(COLLECTION_REFERENCE);
+
+        // The collection home page and the documents next to it are not pages, but they are part of the collection
+        assertEquals(Arrays.asList(COLLECTION_REFERENCE, TERMINAL_DOCUMENT_REFERENCE), documents);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.ClassBlockMatcher;
+import org.xwiki.rendering.parser.Parser;
+import org.xwiki.rendering.renderer.BlockRenderer;
+import org.xwiki.rendering.renderer.printer.WikiPrinter;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link VariantMacroFilter}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class VariantMacroFilterTest
+{
+    private static final DocumentReference DOCUMENT_REFERENCE =
+        new DocumentReference("wiki", Arrays.asList("Book", "Page"), "WebHome");
+
+    private static final DocumentReference VARIANT1_REFERENCE =
+        new DocumentReference("wiki", Arrays.asList("Book", "Variants", "Variant1"), "WebHome");
+
+    private static final DocumentReference VARIANT2_REFERENCE =
+        new DocumentReference("wiki", Arrays.asList("Book", "Variants", "Variant2"), "WebHome");
+
+    private static final String VARIANT1 = "Book.Variants.Variant1.WebHome";
+
+    private static final String VARIANT2 = "Book.Variants.Variant2.WebHome";
+
+    private static final String NESTED_CONTENT =
+        "{{variant variantPage=\"Variant1\"}}one{{/variant}}{{variant variantPage=\"Variant2\"}}two{{/variant}}";
+
+    private static final String BOX = "box";
+
+    @InjectMockComponents
+    private VariantMacroFilter variantMacroFilter;
+
+    @MockComponent
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
+    @MockComponent
+    private DocumentReferenceResolver<String> referenceResolver;
+
+    @MockComponent
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    private final ComponentManager componentManager = mock(ComponentManager.class);
+
+    private final Parser parser = mock(Parser.class);
+
+    private final BlockRenderer renderer = mock(BlockRenderer.class);
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.componentManagerProvider.get()).thenReturn(this.componentManager);
+        when(this.componentManager.<Parser>getInstance(Parser.class, Syntax.XWIKI_2_1.toIdString()))
+            .thenReturn(this.parser);
+        when(this.componentManager.<BlockRenderer>getInstance(BlockRenderer.class, Syntax.XWIKI_2_1.toIdString()))
+            .thenReturn(this.renderer);
+
+        when(this.referenceResolver.resolve("Variant1", DOCUMENT_REFERENCE)).thenReturn(VARIANT1_REFERENCE);
+        when(this.referenceResolver.resolve("Variant2", DOCUMENT_REFERENCE)).thenReturn(VARIANT2_REFERENCE);
+        when(this.localSerializer.serialize(VARIANT1_REFERENCE)).thenReturn(VARIANT1);
+        when(this.localSerializer.serialize(VARIANT2_REFERENCE)).thenReturn(VARIANT2);
+
+        // A new XDOM for each parsing, since the filter modifies it
+        when(this.parser.parse(any(Reader.class))).thenAnswer(invocation -> {
+            String content = new BufferedReader(invocation.<Reader>getArgument(0)).lines()
+                .collect(Collectors.joining("\n"));
+            if (NESTED_CONTENT.equals(content)) {
+                return new XDOM(Arrays.asList(variantMacro("Variant1", "one"), variantMacro("Variant2", "two")));
+            }
+            return new XDOM(Collections.singletonList(new ParagraphBlock(Collections.singletonList(
+                new WordBlock(content)))));
+        });
+        // Render the words of the content
+        doAnswer(invocation -> {
+            invocation.<WikiPrinter>getArgument(1).print(getWords(invocation.getArgument(0)));
+            return null;
+        }).when(this.renderer).render(any(Block.class), any(WikiPrinter.class));
+    }
+
+    @Test
+    void filterKeepsTheSelectedVariant() throws Exception
+    {
+        XDOM xdom = new XDOM(Arrays.asList(variantMacro("Variant1", "one"), variantMacro("Variant2", "two")));
+
+        assertTrue(this.variantMacroFilter.filter(xdom, Syntax.XWIKI_2_1, DOCUMENT_REFERENCE, VARIANT1));
+
+        assertEquals(1, xdom.getChildren().size());
+        assertTrue(xdom.getChildren().get(0) instanceof ParagraphBlock);
+        assertEquals("one", getWords(xdom));
+    }
+
+    @Test
+    void filterWithoutVariantRemovesAllTheVariantMacros() throws Exception
+    {
+        XDOM xdom = new XDOM(Arrays.asList(variantMacro("Variant1", "one"), variantMacro("Variant2", "two")));
+
+        assertTrue(this.variantMacroFilter.filter(xdom, Syntax.XWIKI_2_1, DOCUMENT_REFERENCE, null));
+
+        assertTrue(xdom.getChildren().isEmpty());
+    }
+
+    @Test
+    void filterTheVariantMacrosNestedInAnotherMacro() throws Exception
+    {
+        XDOM xdom = new XDOM(Collections.singletonList(
+            new MacroBlock(BOX, Map.of("title", "Note"), NESTED_CONTENT, false)));
+
+        assertTrue(this.variantMacroFilter.filter(xdom, Syntax.XWIKI_2_1, DOCUMENT_REFERENCE, VARIANT2));
+
+        MacroBlock box = (MacroBlock) xdom.getChildren().get(0);
+        assertEquals(BOX, box.getId());
+        assertEquals("Note", box.getParameter("title"));
+        assertEquals("two", box.getContent());
+    }
+
+    @Test
+    void filterIgnoresTheMacrosWithoutVariantMacros() throws Exception
+    {
+        MacroBlock box = new MacroBlock(BOX, Collections.emptyMap(), "content", false);
+        XDOM xdom = new XDOM(Collections.singletonList(box));
+
+        assertFalse(this.variantMacroFilter.filter(xdom, Syntax.XWIKI_2_1, DOCUMENT_REFERENCE, VARIANT1));
+
+        assertSame(box, xdom.getChildren().get(0));
+        verifyNoInteractions(this.parser);
+    }
+
+    @Test
+    void getVariantsIncludesTheNestedVariantMacros() throws Exception
+    {
+        XDOM xdom = new XDOM(Arrays.asList(variantMacro("Variant1", "one"),
+            new MacroBlock(BOX, Collections.emptyMap(), NESTED_CONTENT, false)));
+
+        Set<String> variants = this.variantMacroFilter.getVariants(xdom, Syntax.XWIKI_2_1, DOCUMENT_REFERENCE);
+
+        assertEquals(Set.of(VARIANT1, VARIANT2), variants);
+    }
+
+    private static MacroBlock variantMacro(String variantPage, String content)
+    {
+        return new MacroBlock(BookVersionsConstants.VARIANT_MACRO_ID,
+            Map.of(BookVersionsConstants.VARIANT_MACRO_PARAM_VARIANTPAGE, variantPage), content, false);
+    }
+
+    private static String getWords(Block block)
+    {
+        List<WordBlock> words = block.getBlocks(new ClassBlockMatcher(WordBlock.class), Block.Axes.DESCENDANT);
+
+        return words.stream().map(WordBlock::getWord).collect(Collectors.joining());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.bookversions.VersionInheritanceException;
+import org.xwiki.contrib.bookversions.VersionInheritanceException.Reason;
+import org.xwiki.model.reference.DocumentReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link VersionGraph}.
+ *
+ * @version $Id$
+ */
+class VersionGraphTest
+{
+    private static final int MAX_DEPTH = 100;
+
+    private final DocumentReference version1 = getVersionReference("V1");
+
+    private final DocumentReference version2 = getVersionReference("V2");
+
+    private final DocumentReference version3 = getVersionReference("V3");
+
+    private VersionGraph graph;
+
+    @BeforeEach
+    void setUp()
+    {
+        // V3 inherits from V2, which inherits from V1
+        Map<DocumentReference, DocumentReference> precedingVersions = new LinkedHashMap<>();
+        precedingVersions.put(this.version1, null);
+        precedingVersions.put(this.version2, this.version1);
+        precedingVersions.put(this.version3, this.version2);
+        this.graph = VersionGraph.create(precedingVersions);
+    }
+
+    @Test
+    void getInheritanceChain() throws Exception
+    {
+        assertEquals(Arrays.asList(this.version3, this.version2, this.version1),
+            this.graph.getInheritanceChain(this.version3, MAX_DEPTH));
+        assertEquals(Collections.singletonList(this.version1),
+            this.graph.getInheritanceChain(this.version1, MAX_DEPTH));
+    }
+
+    @Test
+    void getInheritanceChainOfUnknownVersion() throws Exception
+    {
+        DocumentReference unknownVersion = getVersionReference("Unknown");
+
+        assertEquals(Collections.singletonList(unknownVersion),
+            this.graph.getInheritanceChain(unknownVersion, MAX_DEPTH));
+    }
+
+    @Test
+    void getInheritanceChainSharesTheResolvedChains() throws Exception
+    {
+        List<DocumentReference> chain = this.graph.getInheritanceChain(this.version3, MAX_DEPTH);
+
+        // The chains of the preceding versions are the rest of the chain already resolved
+        assertEquals(chain.subList(1, chain.size()), this.graph.getInheritanceChain(this.version2, MAX_DEPTH));
+        assertSame(this.graph.getInheritanceChain(this.version2, MAX_DEPTH),
+            this.graph.getInheritanceChain(this.version2, MAX_DEPTH));
+    }
+
+    @Test
+    void getInheritanceChainReusesTheChainOfThePrecedingVersion() throws Exception
+    {
+        assertEquals(Arrays.asList(this.version2, this.version1),
+            this.graph.getInheritanceChain(this.version2, MAX_DEPTH));
+
+        assertEquals(Arrays.asList(this.version3, this.version2, this.version1),
+            this.graph.getInheritanceChain(this.version3, MAX_DEPTH));
+    }
+
+    @Test
+    void getInheritanceChainWithCycle()
+    {
+        VersionGraph cyclicGraph = this.graph.withVersion(this.version1, this.version3);
+
+        VersionInheritanceException exception = assertThrows(VersionInheritanceException.class,
+            () -> cyclicGraph.getInheritanceChain(this.version1, MAX_DEPTH));
+
+        assertEquals(Reason.CYCLE, exception.getReason());
+        assertEquals(this.version1, exception.getVersionReference());
+        assertEquals(Arrays.asList(this.version1, this.version3, this.version2, this.version1), exception.getChain());
+    }
+
+    @Test
+    void getInheritanceChainWithSelfCycle()
+    {
+        VersionGraph cyclicGraph = this.graph.withVersion(this.version1, this.version1);
+
+        VersionInheritanceException exception = assertThrows(VersionInheritanceException.class,
+            () -> cyclicGraph.getInheritanceChain(this.version1, MAX_DEPTH));
+
+        assertEquals(Reason.CYCLE, exception.getReason());
+        assertEquals(Arrays.asList(this.version1, this.version1), exception.getChain());
+    }
+
+    @Test
+    void getInheritanceChainLongerThanMaxDepth()
+    {
+        VersionInheritanceException exception = assertThrows(VersionInheritanceException.class,
+            () -> this.graph.getInheritanceChain(this.version3, 2));
+
+        assertEquals(Reason.MAX_DEPTH, exception.getReason());
+        assertEquals(this.version3, exception.getVersionReference());
+        assertEquals(Arrays.asList(this.version3, this.version2), exception.getChain());
+    }
+
+    @Test
+    void getResolvedInheritanceChainLongerThanMaxDepth() throws Exception
+    {
+        this.graph.getInheritanceChain(this.version3, MAX_DEPTH);
+
+        // The depth is checked for the chains already resolved too
+        VersionInheritanceException exception = assertThrows(VersionInheritanceException.class,
+            () -> this.graph.getInheritanceChain(this.version3, 2));
+
+        assertEquals(Reason.MAX_DEPTH, exception.getReason());
+        assertEquals(Arrays.asList(this.version3, this.version2), exception.getChain());
+    }
+
+    @Test
+    void withVersion() throws Exception
+    {
+        DocumentReference version4 = getVersionReference("V4");
+
+        VersionGraph updatedGraph = this.graph.withVersion(version4, this.version3);
+
+        assertEquals(Arrays.asList(version4, this.version3, this.version2, this.version1),
+            updatedGraph.getInheritanceChain(version4, MAX_DEPTH));
+        assertEquals(this.version3, updatedGraph.getPrecedingVersion(version4));
+        // The graphs are immutable
+        assertFalse(this.graph.contains(version4));
+    }
+
+    @Test
+    void withVersionUpdatesThePrecedingVersion() throws Exception
+    {
+        this.graph.getInheritanceChain(this.version3, MAX_DEPTH);
+
+        VersionGraph updatedGraph = this.graph.withVersion(this.version2, null);
+
+        assertEquals(Arrays.asList(this.version3, this.version2),
+            updatedGraph.getInheritanceChain(this.version3, MAX_DEPTH));
+        assertEquals(Arrays.asList(this.version3, this.version2, this.version1),
+            this.graph.getInheritanceChain(this.version3, MAX_DEPTH));
+    }
+
+    @Test
+    void withoutVersion() throws Exception
+    {
+        VersionGraph updatedGraph = this.graph.withoutVersion(this.version2);
+
+        assertFalse(updatedGraph.contains(this.version2));
+        assertNull(updatedGraph.getPrecedingVersion(this.version3));
+        assertEquals(Collections.singletonList(this.version3),
+            updatedGraph.getInheritanceChain(this.version3, MAX_DEPTH));
+
+        // The link to the removed version is restored when it's created again
+        VersionGraph restoredGraph = updatedGraph.withVersion(this.version2, this.version1);
+        assertTrue(restoredGraph.contains(this.version2));
+        assertEquals(Arrays.asList(this.version3, this.version2, this.version1),
+            restoredGraph.getInheritanceChain(this.version3, MAX_DEPTH));
+    }
+
+    @Test
+    void withoutUnknownVersion()
+    {
+        assertSame(this.graph, this.graph.withoutVersion(getVersionReference("Unknown")));
+    }
+
+    private static DocumentReference getVersionReference(String name)
+    {
+        return new DocumentReference("wiki", Arrays.asList("Book", "Versions"), name);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.internal.job;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link PublicationManifest}, which decides which pages a publication skips and deletes.
+ *
+ * @version $Id$
+ */
+class PublicationManifestTest
+{
+    private static final String PAGE1 = "Publication.Page1.WebHome";
+
+    private static final String PAGE2 = "Publication.Page2.WebHome";
+
+    private static final String HASH1 = "a1b2";
+
+    private static final String HASH2 = "c3d4";
+
+    @Test
+    void isUnchanged()
+    {
+        PublicationManifest previousManifest = new PublicationManifest();
+        previousManifest.setHash(PAGE1, HASH1);
+
+        assertTrue(previousManifest.isUnchanged(PAGE1, HASH1));
+        assertFalse(previousManifest.isUnchanged(PAGE1, HASH2));
+        // A page which was not published before is always published
+        assertFalse(previousManifest.isUnchanged(PAGE2, HASH1));
+    }
+
+    @Test
+    void failedPageIsPublishedAgain()
+    {
+        PublicationManifest previousManifest = new PublicationManifest();
+        previousManifest.setFailed(PAGE1);
+
+        assertFalse(previousManifest.isUnchanged(PAGE1, HASH1));
+        assertFalse(previousManifest.isUnchanged(PAGE1, ""));
+    }
+
+    @Test
+    void getRemovedTargets()
+    {
+        PublicationManifest previousManifest = new PublicationManifest();
+        previousManifest.setHash(PAGE1, HASH1);
+        previousManifest.setHash(PAGE2, HASH2);
+        PublicationManifest manifest = new PublicationManifest();
+        manifest.setHash(PAGE1, HASH2);
+
+        assertEquals(Collections.singleton(PAGE2), previousManifest.getRemovedTargets(manifest));
+        assertEquals(Collections.emptySet(), manifest.getRemovedTargets(previousManifest));
+    }
+
+    @Test
+    void failedPageIsNotRemoved()
+    {
+        PublicationManifest previousManifest = new PublicationManifest();
+        previousManifest.setHash(PAGE1, HASH1);
+        previousManifest.setHash(PAGE2, HASH2);
+        // The page failed to be published, or to be deleted: it's kept until a later publication succeeds
+        PublicationManifest manifest = new PublicationManifest();
+        manifest.setHash(PAGE1, HASH1);
+        manifest.setFailed(PAGE2);
+
+        assertEquals(Collections.emptySet(), previousManifest.getRemovedTargets(manifest));
+    }
+
+    @Test
+    void load() throws Exception
+    {
+        PublicationManifest manifest = new PublicationManifest();
+        manifest.setHash(PAGE1, HASH1);
+        manifest.setFailed(PAGE2);
+
+        PublicationManifest loadedManifest = new PublicationManifest();
+        loadedManifest.load(new ByteArrayInputStream(manifest.toByteArray()));
+
+        assertEquals(HASH1, loadedManifest.getHash(PAGE1));
+        assertEquals("", loadedManifest.getHash(PAGE2));
+        assertTrue(loadedManifest.isUnchanged(PAGE1, HASH1));
+        assertFalse(loadedManifest.isUnchanged(PAGE2, HASH2));
+        assertNull(loadedManifest.getHash("Publication.Other.WebHome"));
+        assertEquals(new HashSet<>(Arrays.asList(PAGE1, PAGE2)),
+            loadedManifest.getRemovedTargets(new PublicationManifest()));
+    }
+}
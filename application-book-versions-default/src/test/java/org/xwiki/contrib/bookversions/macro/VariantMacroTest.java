@@ -0,0 +1,190 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xwiki.contrib.bookversions.macro;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.contrib.bookversions.BookVersionsManager;
+import org.xwiki.contrib.bookversions.internal.VariantMacroFilter;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.properties.BeanDescriptor;
+import org.xwiki.properties.BeanManager;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.macro.MacroContentParser;
+import org.xwiki.rendering.macro.MacroExecutionException;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link VariantMacro}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class VariantMacroTest
+{
+    private static final DocumentReference DOCUMENT_REFERENCE =
+        new DocumentReference("wiki", Arrays.asList("Book", "Page"), "WebHome");
+
+    private static final String VARIANT_PAGE = "Book.Variants.Variant1";
+
+    private static final String VARIANT = "Book.Variants.Variant1.WebHome";
+
+    private static final String CONTENT = "content";
+
+    @InjectMockComponents
+    private VariantMacro macro;
+
+    @MockComponent
+    private BeanManager beanManager;
+
+    @MockComponent
+    private CacheManager cacheManager;
+
+    @MockComponent
+    private Provider<BookVersionsManager> bookVersionsManagerProvider;
+
+    @MockComponent
+    private DocumentAccessBridge documentAccessBridge;
+
+    @MockComponent
+    private VariantMacroFilter variantMacroFilter;
+
+    @MockComponent
+    private MacroContentParser contentParser;
+
+    @SuppressWarnings("unchecked")
+    private final Cache<XDOM> cache = mock(Cache.class);
+
+    private final BookVersionsManager bookVersionsManager = mock(BookVersionsManager.class);
+
+    private final MacroTransformationContext context = mock(MacroTransformationContext.class);
+
+    private final VariantMacroParameters parameters = new VariantMacroParameters();
+
+    private final XDOM xdom = new XDOM(Collections.singletonList(new WordBlock(CONTENT)));
+
+    @BeforeComponent
+    void beforeComponent() throws Exception
+    {
+        when(this.beanManager.getBeanDescriptor(VariantMacroParameters.class)).thenReturn(mock(BeanDescriptor.class));
+        when(this.cacheManager.<XDOM>createNewCache(any(CacheConfiguration.class))).thenReturn(this.cache);
+    }
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.bookVersionsManagerProvider.get()).thenReturn(this.bookVersionsManager);
+        when(this.documentAccessBridge.getCurrentDocumentReference()).thenReturn(DOCUMENT_REFERENCE);
+        when(this.variantMacroFilter.getVariant(VARIANT_PAGE, DOCUMENT_REFERENCE)).thenReturn(VARIANT);
+        when(this.contentParser.getCurrentSyntax(this.context)).thenReturn(Syntax.XWIKI_2_1);
+        when(this.contentParser.parse(CONTENT, this.context, false, false)).thenReturn(this.xdom);
+
+        this.parameters.setVariantPage(VARIANT_PAGE);
+    }
+
+    @Test
+    void executeForSelectedVariant() throws Exception
+    {
+        when(this.bookVersionsManager.getSelectedVariant(DOCUMENT_REFERENCE)).thenReturn(VARIANT);
+
+        List<Block> blocks = this.macro.execute(this.parameters, CONTENT, this.context);
+
+        assertEquals(1, blocks.size());
+        assertEquals(CONTENT, ((WordBlock) blocks.get(0)).getWord());
+        // The parsed content is cached, so a copy of it is returned
+        assertNotSame(this.xdom.getChildren().get(0), blocks.get(0));
+    }
+
+    @Test
+    void executeForOtherVariant() throws Exception
+    {
+        when(this.bookVersionsManager.getSelectedVariant(DOCUMENT_REFERENCE))
+            .thenReturn("Book.Variants.Variant2.WebHome");
+
+        assertTrue(this.macro.execute(this.parameters, CONTENT, this.context).isEmpty());
+        verify(this.contentParser, never()).parse(anyString(), any(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void executeWithoutSelectedVariant() throws Exception
+    {
+        assertTrue(this.macro.execute(this.parameters, CONTENT, this.context).isEmpty());
+        verify(this.contentParser, never()).parse(anyString(), any(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void executeWithoutVariantPage() throws Exception
+    {
+        when(this.bookVersionsManager.getSelectedVariant(DOCUMENT_REFERENCE)).thenReturn(VARIANT);
+        this.parameters.setVariantPage(null);
+
+        assertTrue(this.macro.execute(this.parameters, CONTENT, this.context).isEmpty());
+    }
+
+    @Test
+    void executeWithEmptyContent() throws Exception
+    {
+        assertTrue(this.macro.execute(this.parameters, "", this.context).isEmpty());
+        verifyNoInteractions(this.bookVersionsManager);
+    }
+
+    @Test
+    void executeWhenSelectedVariantFails() throws Exception
+    {
+        when(this.bookVersionsManager.getSelectedVariant(DOCUMENT_REFERENCE)).thenThrow(XWikiException.class);
+
+        assertThrows(MacroExecutionException.class,
+            () -> this.macro.execute(this.parameters, CONTENT, this.context));
+    }
+}